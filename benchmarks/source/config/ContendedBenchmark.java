@@ -0,0 +1,74 @@
+/*
+ * Copyright 2018 Stuart Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package config;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures put and get from many threads at once, in a child config whose parent is also being changed.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContendedBenchmark {
+
+    public static final int KEYS = 1024;
+
+    private Config parent;
+    private Config child;
+
+    @Setup
+    public void setup() {
+        parent = new Config();
+        child = new Config(parent);
+        for (int i = 0; i < KEYS; i++) {
+            parent.put("key" + i, "value" + i);
+        }
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(2)
+    public Config put() {
+        int i = ThreadLocalRandom.current().nextInt(KEYS);
+        return (i & 1) == 0 ? parent.put("key" + i, "value" + i) : child.put("key" + i, "value" + i);
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(6)
+    public String get() {
+        return child.get("key" + ThreadLocalRandom.current().nextInt(KEYS));
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2018 Stuart Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package config;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures reading and writing files of 100k lines.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileBenchmark {
+
+    public static final int LINES = 100000;
+
+    private Config config;
+    private File text;
+    private File binary;
+    private File output;
+
+    @Setup
+    public void setup() throws IOException {
+        config = new Config();
+        for (int i = 0; i < LINES; i++) {
+            config.put("section" + (i % 100) + ".key" + i, "value" + i);
+        }
+        text = File.createTempFile("config", ".txt");
+        binary = File.createTempFile("config", ".bin");
+        output = File.createTempFile("config", ".out");
+        config.writeAllLines(text);
+        config.writeBinary(binary);
+    }
+
+    @TearDown
+    public void tearDown() {
+        text.delete();
+        binary.delete();
+        output.delete();
+    }
+
+    @Benchmark
+    public Config readAllLines() throws IOException {
+        return new Config().readAllLines(text);
+    }
+
+    @Benchmark
+    public Config writeAllLines() throws IOException {
+        return config.writeAllLines(output);
+    }
+
+    @Benchmark
+    public String openBinary() throws IOException {
+        return BinaryConfig.open(binary).get("section42.key42");
+    }
+
+    @Benchmark
+    public String openLazy() throws IOException {
+        return LazyConfig.open(text).get("section42.key42");
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2018 Stuart Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package config;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures getAll with a prefix matching one percent of the keys, in a config with an increasing number of keys,
+ * and beneath a child which shadows a few of them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class GetAllBenchmark {
+
+    public static final int GROUPS = 100;
+
+    @Param({"10000", "100000", "1000000"})
+    public int keys;
+
+    private Config config;
+
+    @Setup
+    public void setup() {
+        Config parent = new Config();
+        for (int i = 0; i < keys; i++) {
+            parent.put("group." + (i % GROUPS) + ".key" + i, "value" + i);
+        }
+        config = new Config(parent);
+        for (int i = 42; i < 42 + GROUPS * 10; i += GROUPS) {
+            config.put("group.42.key" + i, "shadow" + i);
+        }
+    }
+
+    @Benchmark
+    public Map<String, String> prefix() {
+        return config.getAll("group.42.");
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2018 Stuart Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package config;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures get and has, for keys held by the root of hierarchies of increasing depth.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GetBenchmark {
+
+    public static final int KEYS = 1000;
+
+    @Param({"1", "2", "4", "8", "16"})
+    public int depth;
+
+    private Config config;
+
+    @Setup
+    public void setup() {
+        config = new Config();
+        for (int i = 0; i < KEYS; i++) {
+            config.put("key" + i, "value" + i);
+        }
+        for (int d = 1; d < depth; d++) {
+            config = new Config(config);
+        }
+    }
+
+    @Benchmark
+    public String hit() {
+        return config.get("key500");
+    }
+
+    @Benchmark
+    public String miss() {
+        return config.get("missing");
+    }
+
+    @Benchmark
+    public boolean has() {
+        return config.has("key500");
+    }
+
+    @Benchmark
+    public boolean hasMiss() {
+        return config.has("missing");
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2018 Stuart Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package config;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures get for lookups with an increasing number of arguments.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LookupBenchmark {
+
+    @Param({"0", "1", "5", "10", "20"})
+    public int placeholders;
+
+    private Config config;
+    private String query;
+
+    @Setup
+    public void setup() {
+        config = new Config();
+        StringBuilder sb = new StringBuilder("?lookup");
+        for (int p = 0; p < placeholders; p++) {
+            config.put("argument" + p, "value" + p);
+            sb.append(" <argument").append(p).append('>');
+        }
+        query = sb.toString();
+        config.put("query", query);
+    }
+
+    @Benchmark
+    public String get() {
+        return config.get("query");
+    }
+
+    @Benchmark
+    public String lookup() {
+        return config.lookup(query);
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2018 Stuart Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Replaces files atomically, by writing to a temporary file beside the target,
+ * syncing it, renaming it over the target, and then syncing the directory,
+ * so readers see either the previous file or the new file, never a partially written file.
+ * Symbolic links are followed, so the file they link to is replaced and the links are left in place.
+ */
+final class AtomicFile {
+
+    /**
+     * Writes the contents of a file.
+     */
+    interface Writer {
+        void write(OutputStream output) throws IOException;
+    }
+
+    private AtomicFile() {
+    }
+
+    /**
+     * Replaces the given file with the contents written by the given writer.
+     */
+    static void write(File file, Writer writer) throws IOException {
+        File temporary = temporary(file);
+        try {
+            FileOutputStream output = null;
+            try {
+                output = new FileOutputStream(temporary);
+                writer.write(output);
+                output.getChannel().force(true);
+            } finally {
+                if (output != null) {
+                    output.close();
+                }
+            }
+            replace(temporary, file);
+        } finally {
+            Files.deleteIfExists(temporary.toPath());
+        }
+    }
+
+    /**
+     * Returns a new temporary file beside the given file, to be written and then used to replace it.
+     */
+    static File temporary(File file) throws IOException {
+        File target = target(file);
+        return File.createTempFile("." + target.getName() + ".", ".tmp", target.getParentFile());
+    }
+
+    /**
+     * Renames the given temporary file, which must already be synced, over the given file.
+     */
+    static void replace(File temporary, File file) throws IOException {
+        File target = target(file);
+        try {
+            Files.move(temporary.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporary.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        sync(target);
+    }
+
+    /**
+     * Returns the file to replace in place of the given file,
+     * the real file it links to if it exists, or otherwise its absolute path.
+     */
+    private static File target(File file) throws IOException {
+        if (file.exists()) {
+            return file.toPath().toRealPath().toFile();
+        }
+        return file.getAbsoluteFile();
+    }
+
+    /**
+     * Syncs the directory holding the given file, so that renaming or deleting the file survives a crash.
+     */
+    static void sync(File file) throws IOException {
+        File directory = file.getAbsoluteFile().getParentFile();
+        try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (AccessDeniedException e) {
+            /* ignored, some platforms cannot open directories, nor need them synced */
+        }
+    }
+}
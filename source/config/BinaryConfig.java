@@ -0,0 +1,385 @@
+/*
+ * Copyright 2018 Stuart Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package config;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A read-only config backed by a memory-mapped file in the binary format written by Config.writeBinary.
+ *
+ * <p>
+ * Opening a file only reads its header; entries are found in the mapped file and decoded on first access,
+ * so starting up costs the same however large the file is.
+ * </p>
+ *
+ * <pre>
+ * {@code
+ * The format is a header of five ints; magic, version, string count, entry count, and slot count,
+ * followed by:
+ *   string offsets: (string count + 1) ints, into the string data
+ *   entry keys:     (entry count) ints, indices of the key strings, sorted by their UTF-8 bytes
+ *   entry values:   (entry count) ints, indices of the value strings
+ *   slots:          (slot count) ints, an open-addressing table of entry indices plus one, zero marks empty
+ *   string data:    the UTF-8 bytes of each distinct key and value
+ * Without slots, keys are found by binary search.
+ * }
+ * </pre>
+ */
+public class BinaryConfig extends Config {
+
+    // "CFGB"
+    static final int MAGIC = 0x43464742;
+    static final int VERSION = 1;
+    private static final int HEADER = 5 * 4;
+
+    /**
+     * Opens the given binary config file.
+     */
+    public static BinaryConfig open(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.limit() < HEADER || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                throw new IOException("Not a binary config: " + file);
+            }
+            return new BinaryConfig(buffer);
+        }
+    }
+
+    /**
+     * Converts the given text config file into the given binary config file.
+     */
+    public static void convertToBinary(File text, File binary) throws IOException {
+        convertToBinary(text, binary, true);
+    }
+
+    /**
+     * Converts the given text config file into the given binary config file, with a hash table of the keys iff hashed.
+     */
+    public static void convertToBinary(File text, File binary, boolean hashed) throws IOException {
+        Config.create(text).writeBinary(binary, hashed);
+    }
+
+    /**
+     * Converts the given binary config file into the given text config file.
+     */
+    public static void convertToText(File binary, File text) throws IOException {
+        open(binary).writeAllLines(text);
+    }
+
+    /**
+     * Writes the given key/value pairs to the given stream, with slots for hashing iff hashed.
+     */
+    static void write(Map<String, String> entries, OutputStream output, boolean hashed) throws IOException {
+        int count = entries.size();
+        byte[][] keys = new byte[count][];
+        String[] values = new String[count];
+        Integer[] order = new Integer[count];
+        int e = 0;
+        for (Entry<String, String> entry : entries.entrySet()) {
+            keys[e] = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            values[e] = entry.getValue();
+            order[e] = e;
+            e++;
+        }
+        Arrays.sort(order, (a, b) -> compare(keys[a], keys[b]));
+        // Each distinct string is stored once
+        Map<String, Integer> indices = new HashMap<>();
+        byte[][] strings = new byte[count * 2][];
+        int[] keyIndices = new int[count];
+        int[] valueIndices = new int[count];
+        int size = 0;
+        for (int i = 0; i < count; i++) {
+            String key = new String(keys[order[i]], StandardCharsets.UTF_8);
+            Integer index = indices.get(key);
+            if (index == null) {
+                index = size;
+                strings[size++] = keys[order[i]];
+                indices.put(key, index);
+            }
+            keyIndices[i] = index;
+            index = indices.get(values[order[i]]);
+            if (index == null) {
+                index = size;
+                strings[size++] = values[order[i]].getBytes(StandardCharsets.UTF_8);
+                indices.put(values[order[i]], index);
+            }
+            valueIndices[i] = index;
+        }
+        int[] slots = new int[hashed && count > 0 ? Integer.highestOneBit(count * 2 - 1) << 1 : 0];
+        int mask = slots.length - 1;
+        for (int i = 0; i < slots.length && i < count; i++) {
+            int slot = hash(keys[order[i]]) & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = i + 1;
+        }
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(output, 1 << 16));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(size);
+        out.writeInt(count);
+        out.writeInt(slots.length);
+        int offset = 0;
+        for (int s = 0; s < size; s++) {
+            out.writeInt(offset);
+            offset += strings[s].length;
+        }
+        out.writeInt(offset);
+        for (int i = 0; i < count; i++) {
+            out.writeInt(keyIndices[i]);
+        }
+        for (int i = 0; i < count; i++) {
+            out.writeInt(valueIndices[i]);
+        }
+        for (int slot : slots) {
+            out.writeInt(slot);
+        }
+        for (int s = 0; s < size; s++) {
+            out.write(strings[s]);
+        }
+        out.flush();
+    }
+
+    /**
+     * Compares the given byte arrays as unsigned bytes.
+     */
+    private static int compare(byte[] a, byte[] b) {
+        int length = Math.min(a.length, b.length);
+        for (int i = 0; i < length; i++) {
+            int c = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    /**
+     * Returns the 32-bit FNV-1a hash of the given bytes.
+     */
+    static int hash(byte[] bytes) {
+        int h = 0x811C9DC5;
+        for (int i = 0; i < bytes.length; i++) {
+            h ^= bytes[i] & 0xFF;
+            h *= 0x01000193;
+        }
+        return h;
+    }
+
+    private final ByteBuffer buffer;
+    private final int entries;
+    private final int slots;
+    private final int offsets;
+    private final int keys;
+    private final int values;
+    private final int table;
+    private final int data;
+    // Entries which have been decoded
+    private final Map<String, Value> decoded = new ConcurrentHashMap<>();
+    // Computed on first use, the flag is written after the digest so reading it first publishes the digest
+    private long digest;
+    private volatile boolean digested;
+
+    private BinaryConfig(ByteBuffer buffer) {
+        super(null, null, null, false);
+        this.buffer = buffer;
+        int strings = buffer.getInt(8);
+        entries = buffer.getInt(12);
+        slots = buffer.getInt(16);
+        offsets = HEADER;
+        keys = offsets + (strings + 1) * 4;
+        values = keys + entries * 4;
+        table = values + entries * 4;
+        data = table + slots * 4;
+    }
+
+    /**
+     * Returns the number of entries in this config.
+     */
+    public int size() {
+        return entries;
+    }
+
+    /**
+     * Returns true iff this file has a hash table of its keys, rather than only the sorted keys.
+     */
+    public boolean isHashed() {
+        return slots > 0;
+    }
+
+    @Override
+    Value local(String key) {
+        Value value = decoded.get(key);
+        if (value == null) {
+            int entry = indexOf(key.getBytes(StandardCharsets.UTF_8));
+            if (entry >= 0) {
+                value = new Value(string(buffer.getInt(values + entry * 4)));
+                decoded.put(key, value);
+            }
+        }
+        return value;
+    }
+
+    @Override
+    Iterator<Entry<String, Value>> locals(String prefix) {
+        final byte[] bytes = prefix.getBytes(StandardCharsets.UTF_8);
+        final int start = start(bytes);
+        return new PrefixIterator<Value>() {
+            private int entry = start;
+
+            @Override
+            Entry<String, Value> advance() {
+                // Keys are sorted, so the entries with the prefix all come together from the start
+                if (entry >= entries || !startsWith(buffer.getInt(keys + entry * 4), bytes)) {
+                    return null;
+                }
+                String key = string(buffer.getInt(keys + entry * 4));
+                Value value = decoded.get(key);
+                if (value == null) {
+                    value = new Value(string(buffer.getInt(values + entry * 4)));
+                }
+                entry++;
+                return new SimpleImmutableEntry<>(key, value);
+            }
+        };
+    }
+
+    /**
+     * Returns true iff the given string starts with the given UTF-8 bytes.
+     */
+    private boolean startsWith(int string, byte[] bytes) {
+        int offset = buffer.getInt(offsets + string * 4);
+        int length = buffer.getInt(offsets + string * 4 + 4) - offset;
+        if (length < bytes.length) {
+            return false;
+        }
+        for (int i = 0; i < bytes.length; i++) {
+            if (buffer.get(data + offset + i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the index of the entry with the given key, or -1 if this config does not have the given key.
+     */
+    private int indexOf(byte[] key) {
+        if (slots == 0) {
+            int entry = start(key);
+            return entry < entries && compare(entry, key) == 0 ? entry : -1;
+        }
+        int mask = slots - 1;
+        for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+            int entry = buffer.getInt(table + slot * 4) - 1;
+            if (entry < 0) {
+                return -1;
+            }
+            if (compare(entry, key) == 0) {
+                return entry;
+            }
+        }
+    }
+
+    /**
+     * Returns the index of the first entry whose key is not less than the given key.
+     */
+    private int start(byte[] key) {
+        int low = 0;
+        int high = entries;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (compare(middle, key) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Compares the key of the given entry with the given key, as unsigned bytes.
+     */
+    private int compare(int entry, byte[] key) {
+        int string = buffer.getInt(keys + entry * 4);
+        int offset = buffer.getInt(offsets + string * 4);
+        int length = buffer.getInt(offsets + string * 4 + 4) - offset;
+        int common = Math.min(length, key.length);
+        for (int i = 0; i < common; i++) {
+            int c = (buffer.get(data + offset + i) & 0xFF) - (key[i] & 0xFF);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return length - key.length;
+    }
+
+    /**
+     * Decodes the string with the given index.
+     */
+    private String string(int string) {
+        int offset = buffer.getInt(offsets + string * 4);
+        int length = buffer.getInt(offsets + string * 4 + 4) - offset;
+        byte[] bytes = new byte[length];
+        ByteBuffer b = buffer.duplicate();
+        b.position(data + offset);
+        b.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    long digest() {
+        if (!digested) {
+            digest = scan();
+            digested = true;
+        }
+        return digest;
+    }
+
+    @Override
+    public Config put(String key, String value) {
+        throw new UnsupportedOperationException("Binary configs cannot be changed");
+    }
+
+    @Override
+    void apply(Map<String, String> puts, Collection<String> removes) {
+        throw new UnsupportedOperationException("Binary configs cannot be changed");
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getName() + "@" + Integer.toHexString(hashCode()) + "\nentries: " + entries + "\n";
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2018 Stuart Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package config;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A Bloom filter of keys, which answers whether a key might have been added,
+ * so that keys which were definitely not added are ruled out by testing a few bits.
+ *
+ * <p>
+ * Keys are added by a single writer at a time, while any number of readers test them.
+ * The filter holds 16 bits per key up to its capacity, for a false positive rate of a quarter of a percent.
+ * </p>
+ */
+final class BloomFilter {
+
+    private static final int BITS_PER_KEY = 16;
+    private static final int PROBES = 4;
+    // Keeps the number of bits within an int
+    private static final int MAX_CAPACITY = 1 << 26;
+
+    private final AtomicLongArray bits;
+    private final int mask;
+    private final int capacity;
+    // Only accessed by the writer
+    private int count;
+
+    /**
+     * Creates an empty filter sized for at least the given number of keys.
+     */
+    BloomFilter(int capacity) {
+        int keys = Math.min(Math.max(1, capacity), MAX_CAPACITY);
+        int length = Math.max(1, Integer.highestOneBit(keys * BITS_PER_KEY - 1) << 1 >>> 6);
+        this.bits = new AtomicLongArray(length);
+        this.mask = length * 64 - 1;
+        this.capacity = length * 64 / BITS_PER_KEY;
+    }
+
+    /**
+     * Returns the number of keys this filter holds before its false positive rate rises.
+     */
+    int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the number of keys added to this filter.
+     */
+    int count() {
+        return count;
+    }
+
+    /**
+     * Adds the given key.
+     */
+    void add(String key) {
+        int h = key.hashCode() * 0x9E3779B1;
+        int step = (Integer.rotateLeft(key.hashCode(), 16) * 0x85EBCA6B) | 1;
+        for (int p = 0; p < PROBES; p++, h += step) {
+            int bit = h & mask;
+            int index = bit >>> 6;
+            long word = bits.get(index);
+            long set = word | (1L << bit);
+            if (set != word) {
+                bits.set(index, set);
+            }
+        }
+        count++;
+    }
+
+    /**
+     * Returns false if the given key was definitely not added, or true if it might have been.
+     */
+    boolean mightContain(String key) {
+        int h = key.hashCode() * 0x9E3779B1;
+        int step = (Integer.rotateLeft(key.hashCode(), 16) * 0x85EBCA6B) | 1;
+        for (int p = 0; p < PROBES; p++, h += step) {
+            int bit = h & mask;
+            if ((bits.get(bit >>> 6) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,488 @@
+/*
+ * Copyright 2018 Stuart Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package config;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * A config which holds its keys and values as UTF-8 bytes, to reduce its footprint on the heap.
+ *
+ * <p>
+ * Each entry is a single byte array; the length of the key (a varint), followed by the bytes of the key and the value,
+ * held in an open-addressing table alongside the hash of its key. So an entry costs one array and two slots,
+ * rather than a map node, two strings and their arrays. Values are held inline rather than shared,
+ * since a reference to a shared value costs as much as most values do.
+ * Files are read straight into entries without decoding them.
+ * </p>
+ *
+ * <p>
+ * Strings are only decoded when a key is gotten, and are not kept, so each get of this config alone
+ * costs a little more than that of a config, while children still cache their resolutions as usual.
+ * Keys are found without encoding them unless they are not ASCII. Prefix queries scan all of the entries.
+ * Slots are filled in place while holding the lock, and readers retry if a change ran while they read.
+ * </p>
+ */
+public class CompactConfig extends Config {
+
+    private static final int CAPACITY = 16;
+    // Marks the slot of a removed key, compared by identity
+    private static final byte[] REMOVED = new byte[0];
+    private static final byte[] TRUE = "true".getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * The slots of the entries, never more than three quarters used so that every probe ends at an empty slot.
+     */
+    private static final class Table {
+        private final int[] hashes;
+        private final byte[][] entries;
+        // Only written while holding the lock
+        private int live;
+        private int used;
+
+        private Table(int capacity) {
+            hashes = new int[capacity];
+            entries = new byte[capacity][];
+        }
+    }
+
+    private volatile Table table = new Table(CAPACITY);
+
+    /**
+     * Creates an empty compact config.
+     */
+    public CompactConfig() {
+        this(null, null, null);
+    }
+
+    /**
+     * Creates a compact config with the given parent.
+     */
+    public CompactConfig(Config parent) {
+        this(parent, null, null);
+    }
+
+    /**
+     * Creates a compact config with the given parent, input-, and output-stream.
+     */
+    public CompactConfig(Config parent, InputStream in, OutputStream out) {
+        super(parent, in, out, false);
+    }
+
+    /**
+     * Returns the number of entries in this config alone.
+     */
+    public int size() {
+        return hierarchy.read(() -> table.live);
+    }
+
+    @Override
+    Value local(String key) {
+        long v = hierarchy.version();
+        Value value = probe(key);
+        if (!hierarchy.changed(v)) {
+            return value;
+        }
+        return hierarchy.read(() -> probe(key));
+    }
+
+    /**
+     * Returns the value of the given key in this config alone, which may be torn by a concurrent change.
+     */
+    private Value probe(String key) {
+        Table t = table;
+        int slot = slot(t, key);
+        byte[] entry = slot < 0 ? null : t.entries[slot];
+        return entry == null || entry == REMOVED ? null : new Value(value(entry));
+    }
+
+    @Override
+    Iterator<Entry<String, Value>> locals(String prefix) {
+        final byte[] bytes = encode(prefix);
+        final Table t = table;
+        return new PrefixIterator<Value>() {
+            private int slot = -1;
+
+            @Override
+            Entry<String, Value> advance() {
+                while (++slot < t.entries.length) {
+                    byte[] entry = t.entries[slot];
+                    if (entry != null && entry != REMOVED && startsWith(entry, bytes)) {
+                        return new SimpleImmutableEntry<>(key(entry), new Value(value(entry)));
+                    }
+                }
+                return null;
+            }
+        };
+    }
+
+    @Override
+    long digest() {
+        return scan();
+    }
+
+    @Override
+    public Config put(String key, String value) {
+        if (!key.isEmpty()) {
+            byte[] entry = entry(encode(key), encode(value));
+            hierarchy.begin();
+            try {
+                advance();
+                hierarchy.touch(this, key);
+                insert(entry);
+            } finally {
+                advance();
+                hierarchy.end();
+            }
+        }
+        return this;
+    }
+
+    @Override
+    void apply(Map<String, String> puts, Collection<String> removes) {
+        // Encode the entries before the change begins, to keep it short
+        List<byte[]> entries = new ArrayList<>(puts.size());
+        for (Entry<String, String> e : puts.entrySet()) {
+            if (!e.getKey().isEmpty()) {
+                entries.add(entry(encode(e.getKey()), encode(e.getValue())));
+            }
+        }
+        hierarchy.begin();
+        try {
+            advance();
+            for (String key : removes) {
+                hierarchy.touch(this, key);
+                remove(key);
+            }
+            for (Entry<String, String> e : puts.entrySet()) {
+                if (!e.getKey().isEmpty()) {
+                    hierarchy.touch(this, e.getKey());
+                }
+            }
+            for (byte[] entry : entries) {
+                insert(entry);
+            }
+        } finally {
+            advance();
+            hierarchy.end();
+        }
+    }
+
+    /**
+     * Reads all lines from the given File straight into entries,
+     * and returns the change which puts them into this config.
+     */
+    @Override
+    Runnable parse(File file) throws IOException {
+        List<byte[]> entries = new ArrayList<>();
+        if (file.exists() && file.isFile() && file.canRead()) {
+            LineReader.read(file, (bytes, start, index, end) -> {
+                if (index == start) {
+                    return;
+                }
+                byte[] key = new byte[index - start];
+                System.arraycopy(bytes, start, key, 0, key.length);
+                if (index == end) {
+                    entries.add(entry(key, TRUE));
+                } else {
+                    byte[] value = new byte[end - index - 1];
+                    System.arraycopy(bytes, index + 1, value, 0, value.length);
+                    entries.add(entry(key, value));
+                }
+            });
+        }
+        return () -> {
+            hierarchy.begin();
+            try {
+                advance();
+                boolean watched = hierarchy.isWatched();
+                for (byte[] entry : entries) {
+                    if (watched) {
+                        hierarchy.touch(this, key(entry));
+                    }
+                    insert(entry);
+                }
+            } finally {
+                advance();
+                hierarchy.end();
+            }
+        };
+    }
+
+    /**
+     * Puts the given entry into the table, replacing any entry of the same key, called while holding the lock,
+     * growing the table first if it would be over three quarters used.
+     */
+    private void insert(byte[] entry) {
+        Table t = table;
+        if ((t.used + 1) * 4 > t.entries.length * 3) {
+            t = resize(t);
+        }
+        int h = hash(entry, start(entry), keyLength(entry));
+        int mask = t.entries.length - 1;
+        int free = -1;
+        int slot = h & mask;
+        for (byte[] e = t.entries[slot]; e != null; slot = (slot + 1) & mask, e = t.entries[slot]) {
+            if (e == REMOVED) {
+                if (free < 0) {
+                    free = slot;
+                }
+            } else if (t.hashes[slot] == h && sameKey(e, entry)) {
+                t.entries[slot] = entry;
+                return;
+            }
+        }
+        if (free < 0) {
+            free = slot;
+            t.used++;
+        }
+        t.hashes[free] = h;
+        t.entries[free] = entry;
+        t.live++;
+    }
+
+    /**
+     * Removes the given key from the table, called while holding the lock.
+     */
+    private void remove(String key) {
+        Table t = table;
+        int slot = slot(t, key);
+        if (slot >= 0) {
+            t.entries[slot] = REMOVED;
+            t.live--;
+        }
+    }
+
+    /**
+     * Replaces the given table with one at most half used, called while holding the lock, which also drops removed slots.
+     */
+    private Table resize(Table t) {
+        int capacity = Math.max(CAPACITY, Integer.highestOneBit(Math.max(1, (t.live + 1) * 2 - 1)) << 1);
+        Table resized = new Table(capacity);
+        int mask = capacity - 1;
+        for (int i = 0; i < t.entries.length; i++) {
+            byte[] e = t.entries[i];
+            if (e != null && e != REMOVED) {
+                int slot = t.hashes[i] & mask;
+                while (resized.entries[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                resized.hashes[slot] = t.hashes[i];
+                resized.entries[slot] = e;
+            }
+        }
+        resized.live = t.live;
+        resized.used = t.live;
+        // Published once complete, so readers never see a partial table
+        table = resized;
+        return resized;
+    }
+
+    /**
+     * Returns the slot of the given key in the given table, or -1 if it has none,
+     * without encoding the key unless it is not ASCII.
+     */
+    private static int slot(Table t, String key) {
+        byte[] encoded = null;
+        int h = 0;
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if (c >= 0x80) {
+                encoded = key.getBytes(StandardCharsets.UTF_8);
+                break;
+            }
+            h = 31 * h + c;
+        }
+        h = encoded == null ? mix(h) : hash(encoded, 0, encoded.length);
+        int mask = t.entries.length - 1;
+        for (int slot = h & mask;; slot = (slot + 1) & mask) {
+            byte[] e = t.entries[slot];
+            if (e == null) {
+                return -1;
+            }
+            if (e != REMOVED && t.hashes[slot] == h && (encoded == null ? isKey(e, key) : isKey(e, encoded))) {
+                return slot;
+            }
+        }
+    }
+
+    /**
+     * Returns a new entry of the given key and value.
+     */
+    private static byte[] entry(byte[] key, byte[] value) {
+        int start = 1;
+        for (int length = key.length >>> 7; length != 0; length >>>= 7) {
+            start++;
+        }
+        byte[] entry = new byte[start + key.length + value.length];
+        int i = 0;
+        int length = key.length;
+        while (length >= 0x80) {
+            entry[i++] = (byte) (length | 0x80);
+            length >>>= 7;
+        }
+        entry[i] = (byte) length;
+        System.arraycopy(key, 0, entry, start, key.length);
+        System.arraycopy(value, 0, entry, start + key.length, value.length);
+        return entry;
+    }
+
+    /**
+     * Returns the length of the key of the given entry.
+     */
+    private static int keyLength(byte[] entry) {
+        int length = 0;
+        int shift = 0;
+        for (int i = 0;; i++, shift += 7) {
+            length |= (entry[i] & 0x7F) << shift;
+            if (entry[i] >= 0) {
+                return length;
+            }
+        }
+    }
+
+    /**
+     * Returns the index of the key of the given entry.
+     */
+    private static int start(byte[] entry) {
+        int i = 0;
+        while (entry[i] < 0) {
+            i++;
+        }
+        return i + 1;
+    }
+
+    private static String key(byte[] entry) {
+        return new String(entry, start(entry), keyLength(entry), StandardCharsets.UTF_8);
+    }
+
+    private static String value(byte[] entry) {
+        int end = start(entry) + keyLength(entry);
+        return new String(entry, end, entry.length - end, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns true iff the given entries have equal keys.
+     */
+    private static boolean sameKey(byte[] a, byte[] b) {
+        int start = start(a);
+        int length = keyLength(a);
+        if (start != start(b) || length != keyLength(b)) {
+            return false;
+        }
+        for (int i = start; i < start + length; i++) {
+            if (a[i] != b[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns true iff the key of the given entry is the given ASCII key.
+     */
+    private static boolean isKey(byte[] entry, String key) {
+        int start = start(entry);
+        if (keyLength(entry) != key.length()) {
+            return false;
+        }
+        for (int i = 0; i < key.length(); i++) {
+            if (entry[start + i] != key.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns true iff the key of the given entry is the given bytes.
+     */
+    private static boolean isKey(byte[] entry, byte[] key) {
+        int start = start(entry);
+        if (keyLength(entry) != key.length) {
+            return false;
+        }
+        for (int i = 0; i < key.length; i++) {
+            if (entry[start + i] != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns true iff the key of the given entry starts with the given prefix.
+     */
+    private static boolean startsWith(byte[] entry, byte[] prefix) {
+        int start = start(entry);
+        if (prefix.length > keyLength(entry)) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (entry[start + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the given string encoded as UTF-8, copying ASCII strings directly.
+     */
+    private static byte[] encode(String string) {
+        int length = string.length();
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            char c = string.charAt(i);
+            if (c >= 0x80) {
+                return string.getBytes(StandardCharsets.UTF_8);
+            }
+            bytes[i] = (byte) c;
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the hash of the given bytes, which for ASCII is that of their chars.
+     */
+    private static int hash(byte[] bytes, int start, int length) {
+        int h = 0;
+        for (int i = start; i < start + length; i++) {
+            h = 31 * h + bytes[i];
+        }
+        return mix(h);
+    }
+
+    private static int mix(int h) {
+        return h ^ (h >>> 16);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getName() + "@" + Integer.toHexString(hashCode()) + "\nentries: " + size() + "\n";
+    }
+}
@@ -16,25 +16,48 @@
 
 package config;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.AbstractMap.SimpleImmutableEntry;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.NavigableMap;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class Config {
 
+    private static final Set<String> BOOLEANS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList("true", "false")));
+    private static final Set<String> NUMBERS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList("-10.00", "0", "1.0", "200.", "300030.030003", "..")));
+    // The number of keys a config filters before it grows its filter
+    static final int FILTER_CAPACITY = 64;
+
     /**
      * Creates a new config with the given args.
      */
@@ -70,9 +93,7 @@ public class Config {
         final Config config = new Config(parent, i, o);
         config.put(args);
         if (files != null) {
-            for (int a = 0; a < files.length; a++) {
-                config.readAllLines(files[a]);
-            }
+            config.readAllLines(files);
         }
         return config;
     }
@@ -91,11 +112,31 @@ public class Config {
         return null;
     }
 
-    // TODO consider Map<ByteString, ByteString>
-    private final Map<String, String> configs = new ConcurrentHashMap<>();
+    // See CompactConfig for keys and values held as UTF-8 bytes,
+    // null for subclasses which hold their entries elsewhere
+    private final Map<String, Value> configs;
+    // The same entries ordered by key, for prefix queries
+    private final NavigableMap<String, Value> ordered;
+    // Rules out keys missing from the entries above, null for subclasses which hold their entries elsewhere
+    private volatile BloomFilter filter;
+    // True iff this config and all its ancestors filter their keys, so the filter of the hierarchy rules out keys they lack
+    private final boolean filtered;
+    // The sum of the hashes of the entries above, only written while holding the lock
+    private volatile long digest;
     private final Config parent;
     private final InputStream in;
     private final OutputStream out;
+    // Null unless this config has streams to prompt with
+    private final Prompter prompter;
+    private final ReentrantLock prompting;
+    // Shared by every config in the hierarchy, and used by subclasses with their own storage
+    final Hierarchy hierarchy;
+    // Advanced once before the entries of this config change and again after, so it is odd while they change
+    private volatile long version;
+    // Created on first use, and each resolution checks it is current before it is used
+    private volatile Map<String, Resolution> resolutions;
+    // Null unless instrumented
+    private volatile ConfigMetrics metrics;
 
     /**
      * Creates an empty config.
@@ -119,22 +160,37 @@ public class Config {
      * </p>
      */
     public Config(Config parent, InputStream in, OutputStream out) {
+        this(parent, in, out, true);
+    }
+
+    /**
+     * Creates an config with the given parent, input-, and output-stream,
+     * which holds its own entries iff stored, and otherwise leaves them to the subclass.
+     */
+    Config(Config parent, InputStream in, OutputStream out, boolean stored) {
+        this.configs = stored ? new ConcurrentHashMap<>() : null;
+        this.ordered = stored ? new ConcurrentSkipListMap<>() : null;
         this.parent = parent;
         this.in = in;
         this.out = out;
+        this.prompter = out == null ? null : new Prompter();
+        this.prompting = out == null ? null : new ReentrantLock();
+        this.hierarchy = parent == null ? new Hierarchy() : parent.hierarchy;
+        this.filter = getClass() == Config.class ? new BloomFilter(FILTER_CAPACITY) : null;
+        this.filtered = filter != null && (parent == null || parent.filtered);
+        if (filter != null) {
+            hierarchy.register(this);
+        }
     }
 
     /**
      * Returns true iff this config or its hierarchy has the given key.
      */
     public boolean has(String key) {
-        if (configs.containsKey(key)) {
-            return true;
+        if (parent == null) {
+            return mayHave(key) && local(key) != null;
         }
-        if (parent != null) {
-            return parent.has(key);
-        }
-        return false;
+        return resolve(key) != null;
     }
 
     /**
@@ -166,81 +222,521 @@ public class Config {
      * iff the set of options is null or the value is an element of the set.
      */
     public String get(String key, Set<String> options) {
-        String value = configs.get(key);
-        if (value == null || (options != null && !options.contains(value))) {
+        return get(key, options, null);
+    }
+
+    /**
+     * Returns the value of the given key, as get does,
+     * while the given keys are already being actualized by lookups.
+     */
+    String get(String key, Set<String> options, List<String> visiting) {
+        return get(key, options, visiting, metrics, false);
+    }
+
+    /**
+     * Returns the value of the given key, as get does, recording it in the given metrics if not null,
+     * which are those of the config the value was asked of, even as the get passes to its hierarchy.
+     * The hit or miss is not recorded iff the caller already counted it.
+     */
+    String get(String key, Set<String> options, List<String> visiting, ConfigMetrics m, boolean counted) {
+        if (options == null) {
+            Config owner = this;
+            Value value;
+            int depth = 0;
             if (parent == null) {
-                if (out != null) {
-                    try {
-                        out.write(("Config: " + key + (options == null ? "?\n" : "? (" + options + ")\n")).getBytes());
-                        if (in != null) {
-                            value = readLine(in);
-                        }
-                        if (!key.equals("save") && value != null && hasBoolean("save")) {
-                            put(key, value);
-                        }
-                    } catch (Exception e) {
-                        /* ignored */
-                    }
+                value = local(key);
+            } else {
+                Resolution resolution = resolve(key);
+                if (resolution == null) {
+                    value = null;
+                } else {
+                    owner = resolution.owner;
+                    value = resolution.value;
+                    depth = resolution.depth;
+                }
+            }
+            if (value != null) {
+                if (m == null) {
+                    return expand(owner, value, key, visiting, true);
+                }
+                if (!counted) {
+                    m.hit(key, depth);
                 }
+                if (value.lookup == null) {
+                    return value.raw;
+                }
+                long start = System.nanoTime();
+                String result = expand(owner, value, key, visiting, true);
+                m.lookup(System.nanoTime() - start);
+                return result;
+            }
+            if (m != null && !counted) {
+                m.miss();
+            }
+            Config root = this;
+            while (root.parent != null) {
+                root = root.parent;
+            }
+            String answer = root.prompt(key, null, null, m);
+            return answer == null ? null : expand(root, new Value(answer), key, visiting, true);
+        }
+        if (m != null && !counted) {
+            // Counted once, here, at the depth of the first value which is one of the options
+            int depth = 0;
+            Config c = this;
+            while (c != null && !c.offers(key, options)) {
+                c = c.parent;
+                depth++;
+            }
+            if (c == null) {
+                m.miss();
+            } else {
+                m.hit(key, depth);
+            }
+            counted = true;
+        }
+        Value v = local(key);
+        String value = v == null ? null : v.raw;
+        if (value == null || !options.contains(value)) {
+            if (parent == null) {
+                value = prompt(key, options, value, m);
             } else {
-                value = parent.get(key, options);
+                value = parent.get(key, options, visiting, m, counted);
+            }
+        }
+        return value == null ? null : actualize(value, key, visiting, true);
+    }
+
+    /**
+     * Returns true iff this config has the given key, with a value which is one of the given options.
+     */
+    private boolean offers(String key, Set<String> options) {
+        Value value = local(key);
+        return value != null && options.contains(value.raw);
+    }
+
+    /**
+     * Returns a future of the value of the given key in this config or its hierarchy.
+     */
+    public CompletableFuture<String> getAsync(String key) {
+        return getAsync(key, null);
+    }
+
+    /**
+     * Returns a future of the value of the given key in this config or its hierarchy
+     * iff the set of options is null or the value is an element of the set.
+     *
+     * <p>
+     * Values which are already available, including lookups which actualize without prompting, complete immediately.
+     * Otherwise the get, including any prompts for missing keys, is run on a single dedicated thread,
+     * and concurrent gets of the same key share a single prompt and answer.
+     * </p>
+     */
+    public CompletableFuture<String> getAsync(String key, Set<String> options) {
+        Config root = this;
+        while (root.parent != null) {
+            root = root.parent;
+        }
+        if (root.prompter == null || available(key, options)) {
+            return CompletableFuture.completedFuture(get(key, options));
+        }
+        return root.prompter.submit(key, () -> get(key, options));
+    }
+
+    /**
+     * Returns true iff the value of the given key can be gotten without prompting.
+     */
+    private boolean available(String key, Set<String> options) {
+        if (options == null) {
+            // Lookups of missing keys are left unresolved rather than prompted for
+            String value = expand(key, null);
+            return value != null && !value.startsWith("?");
+        }
+        for (Config c = this; c != null; c = c.parent) {
+            Value value = c.local(key);
+            if (value != null && options.contains(value.raw)) {
+                return value.lookup == null || !c.actualize(value.raw, key, null, false).startsWith("?");
             }
         }
-        if (value != null && value.startsWith("?")) {
-            return lookup(value);
+        return false;
+    }
+
+    /**
+     * Asks the output-stream for the value of the given key and reads it from the input-stream.
+     * Returns the given value if this config has no streams to ask.
+     * The prompt is recorded in the given metrics if not null.
+     */
+    private String prompt(String key, Set<String> options, String value, ConfigMetrics m) {
+        if (out != null) {
+            try {
+                long start = m == null ? 0 : System.nanoTime();
+                final String previous = value;
+                value = prompter.ask(key, () -> ask(key, options, previous));
+                if (m != null) {
+                    m.prompt(System.nanoTime() - start);
+                }
+                if (!key.equals("save") && value != null && hasBoolean("save")) {
+                    put(key, value);
+                }
+            } catch (Exception e) {
+                /* ignored */
+            }
         }
         return value;
     }
 
+    /**
+     * Writes the prompt for the given key to the output-stream and returns the line read from the input-stream,
+     * or the given value if there is no input-stream.
+     */
+    private String ask(String key, Set<String> options, String value) throws IOException {
+        // Keep each prompt together with its answer, without pinning virtual threads as a monitor would
+        prompting.lock();
+        try {
+            out.write(("Config: " + key + (options == null ? "?\n" : "? (" + options + ")\n")).getBytes());
+            return in == null ? value : readLine(in);
+        } finally {
+            prompting.unlock();
+        }
+    }
+
+    /**
+     * Advances the version of this config, called while holding the lock once before its entries change and again after.
+     */
+    final void advance() {
+        version++;
+    }
+
+    /**
+     * Returns the config in this hierarchy which supplies the given key and its value,
+     * or null if no config in this hierarchy has the given key.
+     *
+     * <p>
+     * Each resolution is stamped with the versions of the configs it was resolved through, from this config to its owner,
+     * and is cached until one of them changes; changes to other configs in the hierarchy, such as siblings,
+     * leave it in place. Resolutions are not cached if one of those configs was changing as it was resolved.
+     * Misses which the filters rule out are returned without being stamped.
+     * </p>
+     */
+    Resolution resolve(String key) {
+        // Keys missing from the whole hierarchy are ruled out by a single check
+        if (filtered && !hierarchy.mayHave(key)) {
+            return null;
+        }
+        Map<String, Resolution> cache = resolutions;
+        if (cache != null) {
+            Resolution resolution = cache.get(key);
+            if (resolution != null && resolution.isCurrent(this)) {
+                return resolution;
+            }
+        }
+        // Keys which every level definitely lacks are ruled out by their own filters, without stamping
+        Config candidate = this;
+        while (candidate != null && !candidate.mayHave(key)) {
+            candidate = candidate.parent;
+        }
+        if (candidate == null) {
+            return null;
+        }
+        long[] stamps = new long[8];
+        int depth = 0;
+        for (Config c = this; c != null; c = c.parent, depth++) {
+            if (depth == stamps.length) {
+                stamps = Arrays.copyOf(stamps, depth * 2);
+            }
+            // Stamped before probing, so a change while probing makes the resolution stale
+            stamps[depth] = c.version;
+            // Levels which definitely lack the key are skipped without probing their entries
+            Value value = c.mayHave(key) ? c.local(key) : null;
+            if (value != null) {
+                Resolution resolution = new Resolution(c, value, depth, Arrays.copyOf(stamps, depth + 1));
+                if (resolution.isCurrent(this)) {
+                    if (cache == null) {
+                        cache = new ConcurrentHashMap<>();
+                        resolutions = cache;
+                    }
+                    cache.put(key, resolution);
+                }
+                return resolution;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns false if this config alone definitely does not have the given key, or true if it might.
+     */
+    boolean mayHave(String key) {
+        BloomFilter f = filter;
+        return f == null || f.mightContain(key);
+    }
+
+    /**
+     * Adds the given key to the filter, and that of the hierarchy,
+     * called while holding the lock before the key is put into this config,
+     * rebuilding the filter from the entries once it is full, which also drops any removed keys.
+     */
+    private void filter(String key) {
+        BloomFilter f = filter;
+        if (f == null || configs.containsKey(key)) {
+            return;
+        }
+        hierarchy.filter(key);
+        if (f.count() >= f.capacity()) {
+            f = new BloomFilter(Math.max(FILTER_CAPACITY, (configs.size() + 1) * 2));
+            for (String k : configs.keySet()) {
+                f.add(k);
+            }
+            f.add(key);
+            // Published once complete, so readers never see a partial filter
+            filter = f;
+        } else {
+            f.add(key);
+        }
+    }
+
+    /**
+     * Returns the value of the given key in this config alone, or null if this config does not have the given key.
+     */
+    Value local(String key) {
+        return configs.get(key);
+    }
+
+    /**
+     * Returns an iterator over the entries in this config alone, whose keys start with the given prefix.
+     */
+    Iterator<Entry<String, Value>> locals(String prefix) {
+        if (prefix.isEmpty()) {
+            return configs.entrySet().iterator();
+        }
+        return PrefixIterator.filter(ordered.tailMap(prefix).entrySet().iterator(), prefix, true);
+    }
+
+    /**
+     * Returns a digest of the entries in this config alone, the sum of a 64-bit hash of each entry,
+     * so configs with equal entries have equal digests, and configs with different entries almost certainly do not.
+     */
+    long digest() {
+        return digest;
+    }
+
+    /**
+     * Returns the digest of the entries in this config alone computed from scratch,
+     * for subclasses which hold their entries elsewhere.
+     */
+    final long scan() {
+        long sum = 0;
+        for (Iterator<Entry<String, Value>> i = locals(""); i.hasNext();) {
+            Entry<String, Value> e = i.next();
+            sum += hash(e.getKey(), e.getValue().raw);
+        }
+        return sum;
+    }
+
+    /**
+     * Returns a 64-bit hash of the given entry, FNV-1a over its characters followed by a final mix.
+     */
+    static long hash(String key, String value) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h = (h ^ key.charAt(i)) * 0x100000001b3L;
+        }
+        // Outside the range of chars, so the key and value cannot run into each other
+        h = (h ^ 0x10000) * 0x100000001b3L;
+        for (int i = 0; i < value.length(); i++) {
+            h = (h ^ value.charAt(i)) * 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        return h ^ (h >>> 33);
+    }
+
+    /**
+     * Returns the value of the given key in this config or its hierarchy,
+     * or null without asking the streams if no config in this hierarchy has the given key.
+     */
+    Value find(String key) {
+        ConfigMetrics m = metrics;
+        if (parent == null) {
+            Value value = local(key);
+            if (m != null) {
+                if (value == null) {
+                    m.miss();
+                } else {
+                    m.hit(key, 0);
+                }
+            }
+            return value;
+        }
+        Resolution resolution = resolve(key);
+        if (m != null) {
+            if (resolution == null) {
+                m.miss();
+            } else {
+                m.hit(key, resolution.depth);
+            }
+        }
+        return resolution == null ? null : resolution.value;
+    }
+
+    /**
+     * Returns the actualized value of the given key in this config or its hierarchy, as get does,
+     * except that missing keys are left unresolved rather than asked of the streams, and the metrics are left alone.
+     */
+    String expand(String key, List<String> visiting) {
+        if (parent == null) {
+            Value value = local(key);
+            return value == null ? null : expand(this, value, key, visiting, false);
+        }
+        Resolution resolution = resolve(key);
+        return resolution == null ? null : expand(resolution.owner, resolution.value, key, visiting, false);
+    }
+
+    /**
+     * Expands the given value from the given owner down to this config,
+     * just as each level in between would when returning it from get, asking the streams for missing keys iff prompt.
+     */
+    private String expand(Config owner, Value value, String key, List<String> visiting, boolean prompt) {
+        if (value.lookup == null) {
+            return value.raw;
+        }
+        if (owner == this) {
+            return lookup(value.lookup, key, visiting, prompt);
+        }
+        return actualize(parent.expand(owner, value, key, visiting, prompt), key, visiting, prompt);
+    }
+
     /**
      * Returns a new map of all key/value pairs in this config.
      */
     public Map<String, String> getAll() {
-        Map<String, String> entries = new HashMap<>();
-        if (parent != null) {
-            entries.putAll(parent.getAll());
-        }
-        entries.putAll(configs);
-        return entries;
+        return getAll("");
     }
 
     /**
      * Returns a new map of all key/value pairs where key matches the given prefix.
      */
     public Map<String, String> getAll(String prefix) {
-        Map<String, String> entries = new HashMap<>();
-        if (parent != null) {
-            entries.putAll(parent.getAll(prefix));
-        }
-        for (Entry<String, String> e : configs.entrySet()) {
-            if (e.getKey().startsWith(prefix)) {
+        return hierarchy.read(() -> {
+            Map<String, String> entries = new HashMap<>();
+            for (Iterator<Entry<String, String>> i = entries(prefix); i.hasNext();) {
+                Entry<String, String> e = i.next();
                 entries.put(e.getKey(), e.getValue());
             }
-        }
-        return entries;
+            return entries;
+        });
+    }
+
+    /**
+     * Returns a lazy stream of all key/value pairs in this config.
+     */
+    public Stream<Entry<String, String>> stream() {
+        return stream("");
+    }
+
+    /**
+     * Returns a lazy stream of all key/value pairs where key matches the given prefix.
+     *
+     * <p>
+     * The stream walks this config and its hierarchy as it is consumed, skipping keys shadowed by a child,
+     * without copying the entries into a map, so it may be stopped early at little cost.
+     * Unlike getAll, the stream is weakly consistent;
+     * keys changed while it is consumed may or may not be seen, and may even be seen twice.
+     * </p>
+     */
+    public Stream<Entry<String, String>> stream(String prefix) {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(entries(prefix), Spliterator.NONNULL), false);
+    }
+
+    /**
+     * Returns an iterator over all key/value pairs where key matches the given prefix,
+     * visiting each level of the hierarchy in turn and skipping the keys of its children.
+     */
+    Iterator<Entry<String, String>> entries(final String prefix) {
+        return new PrefixIterator<String>() {
+            private Config level = Config.this;
+            private Iterator<Entry<String, Value>> locals = level.locals(prefix);
+
+            @Override
+            Entry<String, String> advance() {
+                while (true) {
+                    while (locals.hasNext()) {
+                        Entry<String, Value> e = locals.next();
+                        if (!shadowed(e.getKey())) {
+                            return new SimpleImmutableEntry<>(e.getKey(), e.getValue().raw);
+                        }
+                    }
+                    level = level.parent;
+                    if (level == null) {
+                        return null;
+                    }
+                    locals = level.locals(prefix);
+                }
+            }
+
+            private boolean shadowed(String key) {
+                for (Config c = Config.this; c != level; c = c.parent) {
+                    if (c.mayHave(key) && c.local(key) != null) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returns a new map of the given keys and their values in this config or its hierarchy,
+     * as of a single change so that related keys are consistent with each other.
+     * Keys which are not in this config or its hierarchy are left out.
+     */
+    public Map<String, String> getAll(Collection<String> keys) {
+        return hierarchy.read(() -> {
+            Map<String, String> entries = new HashMap<>();
+            for (String key : keys) {
+                for (Config c = this; c != null; c = c.parent) {
+                    Value value = c.local(key);
+                    if (value != null) {
+                        entries.put(key, value.raw);
+                        break;
+                    }
+                }
+            }
+            return entries;
+        });
     }
 
     /**
      * Returns a list of all entries in this config, in the format &lt;key&gt;=&lt;value&gt;.
      */
     public List<String> list() {
-        List<String> configs = new ArrayList<>();
-        for (Entry<String, String> config : getAll().entrySet()) {
-            configs.add(String.format("%s=%s", config.getKey(), config.getValue()));
-        }
-        return configs;
+        return hierarchy.read(() -> {
+            List<String> configs = new ArrayList<>();
+            for (Iterator<Entry<String, String>> i = entries(""); i.hasNext();) {
+                Entry<String, String> config = i.next();
+                configs.add(config.getKey() + '=' + config.getValue());
+            }
+            return configs;
+        });
     }
 
     /**
      * Returns true iff the given key == "true".
      */
     public boolean getBoolean(String key) {
-        String value = get(key);
+        Value v = find(key);
+        if (v != null && v.lookup == null && v.isBoolean) {
+            return v.bool;
+        }
+        // The hit or miss was counted by find
+        String value = get(key, null, null, metrics, true);
         if (value == null) {
             return false;
         }
         if (!value.equals("true") && !value.equals("false")) {
-            value = get(key, new HashSet<>(Arrays.asList("true", "false")));
+            value = get(key, BOOLEANS, null, metrics, true);
         }
         return Boolean.parseBoolean(value);
     }
@@ -249,7 +745,12 @@ public class Config {
      * Returns the double parsed from the value with the given key.
      */
     public double getNumber(String key) {
-        String value = get(key);
+        Value v = find(key);
+        if (v != null && v.lookup == null && v.isNumber()) {
+            return v.number();
+        }
+        // The hit or miss was counted by find
+        String value = get(key, null, null, metrics, true);
         if (value == null) {
             return 0.0;
         }
@@ -257,7 +758,7 @@ public class Config {
             return Double.parseDouble(value);
         } catch (NumberFormatException e) {
             try {
-                value = get(key, new HashSet<>(Arrays.asList("-10.00", "0", "1.0", "200.", "300030.030003", "..")));
+                value = get(key, NUMBERS, null, metrics, true);
                 return Double.parseDouble(value);
             } catch (NumberFormatException e2) {
                 return 0.0;
@@ -265,6 +766,60 @@ public class Config {
         }
     }
 
+    /**
+     * Returns the double parsed from the value with the given key,
+     * or the given default if the key is missing or not a number.
+     *
+     * <p>
+     * Unlike getNumber, this never asks the streams for a missing or invalid value.
+     * </p>
+     */
+    public double getDouble(String key, double defaultValue) {
+        Value v = find(key);
+        if (v == null) {
+            return defaultValue;
+        }
+        if (v.lookup != null) {
+            v = new Value(get(key, null, null, metrics, true));
+        }
+        return v.isNumber() ? v.number() : defaultValue;
+    }
+
+    /**
+     * Returns the long parsed from the value with the given key,
+     * or the given default if the key is missing or not an integer.
+     *
+     * <p>
+     * Unlike getNumber, this never asks the streams for a missing or invalid value.
+     * </p>
+     */
+    public long getLong(String key, long defaultValue) {
+        Value v = find(key);
+        if (v == null) {
+            return defaultValue;
+        }
+        if (v.lookup != null) {
+            v = new Value(get(key, null, null, metrics, true));
+        }
+        return v.isInteger() ? v.integer() : defaultValue;
+    }
+
+    /**
+     * Returns the int parsed from the value with the given key,
+     * or the given default if the key is missing or not an integer within range.
+     *
+     * <p>
+     * Unlike getNumber, this never asks the streams for a missing or invalid value.
+     * </p>
+     */
+    public int getInt(String key, int defaultValue) {
+        long value = getLong(key, Long.MIN_VALUE);
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            return defaultValue;
+        }
+        return (int) value;
+    }
+
     /**
      * Looks up the given query and returns it as an actualized string.
      *
@@ -285,38 +840,65 @@ public class Config {
         if (query == null || !query.startsWith("?")) {
             return query;
         }
-        String result = parseLookup(query);
-        int index = result.indexOf('<');
-        if (index < 0) {
-            // All arguments resolved, remove '?'
-            return result.substring(1);
-        }
-        return result;
-    }
-
-    private String parseLookup(String lookup) {
-        int startIndex = lookup.indexOf('<');
-        int endIndex = lookup.indexOf('>');
-        if (startIndex < 0 || endIndex <= startIndex) {
-            return lookup;
-        }
-        String prefix = lookup.substring(0, startIndex);
-        String key = lookup.substring(startIndex + 1, endIndex);
-        String suffix = lookup.substring(endIndex + 1);
-        String result = get(key);
-        StringBuilder sb = new StringBuilder(prefix);
-        if (result == null) {
-            sb.append("<");
-            sb.append(key);// Replace key
-            sb.append(">");
-        } else {
-            sb.append(result);
+        return lookup(Lookup.compile(query), null, null, true);
+    }
+
+    /**
+     * Actualizes the given value if it is a lookup, marking the given key as being actualized.
+     */
+    private String actualize(String value, String key, List<String> visiting, boolean prompt) {
+        if (!value.startsWith("?")) {
+            return value;
         }
-        if (suffix.length() > 0) {
-            sb.append(parseLookup(suffix));
+        return lookup(Lookup.compile(value), key, visiting, prompt);
+    }
+
+    /**
+     * Actualizes the given lookup in a single pass, asking the streams for missing keys iff prompt.
+     *
+     * <p>
+     * Keys which are already being actualized form a cycle,
+     * and are left unresolved just like missing keys.
+     * </p>
+     */
+    private String lookup(Lookup lookup, String key, List<String> visiting, boolean prompt) {
+        String[] keys = lookup.keys;
+        String[] literals = lookup.literals;
+        StringBuilder sb = new StringBuilder(lookup.length + 16 * keys.length);
+        boolean resolved = !lookup.angled;
+        if (keys.length > 0) {
+            if (visiting == null) {
+                visiting = new ArrayList<>();
+            }
+            if (key != null) {
+                visiting.add(key);
+            }
+        }
+        for (int k = 0; k < keys.length; k++) {
+            sb.append(literals[k]);
+            String result = null;
+            if (!visiting.contains(keys[k])) {
+                result = prompt ? get(keys[k], null, visiting) : expand(keys[k], visiting);
+            }
+            if (result == null) {
+                sb.append('<');
+                sb.append(keys[k]);// Replace key
+                sb.append('>');
+                resolved = false;
+            } else {
+                sb.append(result);
+                resolved &= result.indexOf('<') < 0;
+            }
         }
-        String r = sb.toString();
-        return r;
+        sb.append(literals[keys.length]);
+        if (keys.length > 0 && key != null) {
+            visiting.remove(visiting.size() - 1);
+        }
+        if (resolved) {
+            // All arguments resolved, remove '?'
+            return sb.toString();
+        }
+        return sb.insert(0, '?').toString();
     }
 
     /**
@@ -326,8 +908,13 @@ public class Config {
      */
     public Config put(String[] lines) {
         if (lines != null) {
-            for (int l = 0; l < lines.length; l++) {
-                put(lines[l]);
+            hierarchy.begin();
+            try {
+                for (int l = 0; l < lines.length; l++) {
+                    put(lines[l]);
+                }
+            } finally {
+                hierarchy.end();
             }
         }
         return this;
@@ -340,8 +927,13 @@ public class Config {
      */
     public Config put(List<String> lines) {
         if (lines != null) {
-            for (String l : lines) {
-                put(l);
+            hierarchy.begin();
+            try {
+                for (String l : lines) {
+                    put(l);
+                }
+            } finally {
+                hierarchy.end();
             }
         }
         return this;
@@ -378,31 +970,332 @@ public class Config {
      */
     public Config put(String key, String value) {
         if (!key.isEmpty()) {
-            configs.put(key, value);
+            Value v = new Value(value);
+            long hash = hash(key, value);
+            hierarchy.begin();
+            try {
+                advance();
+                hierarchy.touch(this, key);
+                filter(key);
+                Value previous = configs.put(key, v);
+                ordered.put(key, v);
+                digest += hash - (previous == null ? 0 : hash(key, previous.raw));
+            } finally {
+                advance();
+                hierarchy.end();
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Subscribes the given listener to changes in the effective values of keys with the given prefix,
+     * made either to this config or to its hierarchy and not shadowed by this config.
+     * Listeners are called on the common fork-join pool.
+     */
+    public void subscribe(String prefix, ConfigListener listener) {
+        subscribe(prefix, listener, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Subscribes the given listener to changes in the effective values of keys with the given prefix,
+     * made either to this config or to its hierarchy and not shadowed by this config.
+     *
+     * <p>
+     * Changes are delivered in batches on the given executor;
+     * all changes made before the listener runs are delivered together,
+     * so a whole file read by readAllLines results in a single call.
+     * </p>
+     */
+    public void subscribe(String prefix, ConfigListener listener, Executor executor) {
+        hierarchy.subscribe(new Subscription(this, prefix, listener, executor));
+    }
+
+    /**
+     * Unsubscribes the given listener from all changes to this config.
+     */
+    public void unsubscribe(ConfigListener listener) {
+        hierarchy.unsubscribe(this, listener);
+    }
+
+    /**
+     * Returns true iff the given config is this config or is in its hierarchy.
+     */
+    boolean inherits(Config config) {
+        for (Config c = this; c != null; c = c.parent) {
+            if (c == config) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the raw value of the given key in this config or its hierarchy,
+     * without using or filling the resolution cache.
+     */
+    String effective(String key) {
+        for (Config c = this; c != null; c = c.parent) {
+            Value value = c.local(key);
+            if (value != null) {
+                return value.raw;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Puts all of the given key/value pairs into this config, and removes all of the given keys,
+     * publishing them together as a single change.
+     */
+    void apply(Map<String, String> puts, Collection<String> removes) {
+        // Compile the values before the change begins, to keep it short
+        Map<String, Value> values = new LinkedHashMap<>();
+        for (Entry<String, String> e : puts.entrySet()) {
+            if (!e.getKey().isEmpty()) {
+                values.put(e.getKey(), new Value(e.getValue()));
+            }
+        }
+        hierarchy.begin();
+        try {
+            advance();
+            for (String key : removes) {
+                hierarchy.touch(this, key);
+                Value previous = configs.remove(key);
+                ordered.remove(key);
+                if (previous != null) {
+                    digest -= hash(key, previous.raw);
+                }
+            }
+            for (Entry<String, Value> e : values.entrySet()) {
+                hierarchy.touch(this, e.getKey());
+                filter(e.getKey());
+                Value previous = configs.put(e.getKey(), e.getValue());
+                ordered.put(e.getKey(), e.getValue());
+                digest += hash(e.getKey(), e.getValue().raw) - (previous == null ? 0 : hash(e.getKey(), previous.raw));
+            }
+        } finally {
+            advance();
+            hierarchy.end();
+        }
+    }
+
+    /**
+     * Returns the differences between the effective entries of this config and those of the given config,
+     * as of a single change to each.
+     *
+     * <p>
+     * Both hierarchies are lined up from their roots, and levels which are the same config,
+     * or whose digests show they hold the same entries, are skipped; only the keys of the other levels are compared.
+     * So diffing two children of one parent, or two loads of mostly the same files, costs what differs between them.
+     * </p>
+     */
+    public ConfigDiff diff(Config other) {
+        return Hierarchy.read(hierarchy, other.hierarchy, () -> {
+            List<Config> mine = new ArrayList<>();
+            for (Config c = this; c != null; c = c.parent) {
+                mine.add(c);
+            }
+            List<Config> theirs = new ArrayList<>();
+            for (Config c = other; c != null; c = c.parent) {
+                theirs.add(c);
+            }
+            // Only keys in levels which differ can have different effective values
+            Set<String> keys = new HashSet<>();
+            int i = mine.size() - 1;
+            int j = theirs.size() - 1;
+            for (; i >= 0 && j >= 0; i--, j--) {
+                Config a = mine.get(i);
+                Config b = theirs.get(j);
+                if (a != b && a.digest() != b.digest()) {
+                    a.keys(keys);
+                    b.keys(keys);
+                }
+            }
+            for (; i >= 0; i--) {
+                mine.get(i).keys(keys);
+            }
+            for (; j >= 0; j--) {
+                theirs.get(j).keys(keys);
+            }
+            Map<String, String> added = new HashMap<>();
+            Map<String, String> removed = new HashMap<>();
+            Map<String, String> changed = new HashMap<>();
+            for (String key : keys) {
+                String before = effective(key);
+                String after = other.effective(key);
+                if (before == null) {
+                    added.put(key, after);
+                } else if (after == null) {
+                    removed.put(key, before);
+                } else if (!before.equals(after)) {
+                    changed.put(key, after);
+                }
+            }
+            return new ConfigDiff(added, removed, changed);
+        });
+    }
+
+    /**
+     * Adds the keys in this config alone to the given set.
+     */
+    private void keys(Set<String> keys) {
+        for (Iterator<Entry<String, Value>> i = locals(""); i.hasNext();) {
+            keys.add(i.next().getKey());
         }
+    }
+
+    /**
+     * Applies the given diff to this config as a single change,
+     * putting its added and changed entries, and removing its removed keys from this config alone,
+     * so removed keys which are also in the hierarchy of this config remain.
+     * Returns itself for convenient chaining.
+     */
+    public Config apply(ConfigDiff diff) {
+        Map<String, String> puts = new HashMap<>(diff.getAdded());
+        puts.putAll(diff.getChanged());
+        apply(puts, diff.getRemoved().keySet());
         return this;
     }
 
+    /**
+     * Puts all of the given key/value pairs into this config as a single change,
+     * so readers of multiple keys, such as getAll, see either all or none of them.
+     * Returns itself for convenient chaining.
+     */
+    public Config putAll(Map<String, String> entries) {
+        apply(entries, Collections.emptyList());
+        return this;
+    }
+
+    /**
+     * Returns a new transaction which collects puts and removes, and applies them to this config when committed.
+     */
+    public Transaction transaction() {
+        return new Transaction();
+    }
+
+    /**
+     * A batch of puts and removes which are applied to a config as a single change.
+     * A transaction is not thread-safe, and may be reused once committed.
+     */
+    public final class Transaction {
+
+        private final Map<String, String> puts = new HashMap<>();
+        private final Set<String> removes = new HashSet<>();
+
+        private Transaction() {
+        }
+
+        /**
+         * Puts the key/value pair into this transaction.
+         * Returns itself for convenient chaining.
+         */
+        public Transaction put(String key, String value) {
+            removes.remove(key);
+            puts.put(key, value);
+            return this;
+        }
+
+        /**
+         * Removes the given key from the config when this transaction is committed.
+         * Returns itself for convenient chaining.
+         */
+        public Transaction remove(String key) {
+            puts.remove(key);
+            removes.add(key);
+            return this;
+        }
+
+        /**
+         * Applies all puts and removes in this transaction to the config as a single change, and clears this transaction.
+         * Returns the config for convenient chaining.
+         */
+        public Config commit() {
+            try {
+                apply(puts, removes);
+            } finally {
+                puts.clear();
+                removes.clear();
+            }
+            return Config.this;
+        }
+    }
+
     /**
      * Reads all lines from the given File,
      * and puts the key/value pairs into this config.
      * Returns itself for convenient chaining.
+     *
+     * <p>
+     * The file is read in large chunks and decoded as UTF-8,
+     * lines may end with "\n" or "\r\n", and empty lines are skipped.
+     * </p>
      */
     public Config readAllLines(File file) throws FileNotFoundException, IOException {
-        if (file.exists() && file.isFile() && file.canRead()) {
-            FileInputStream input = null;
+        // Parsed before the change begins, so the whole file is a single short change
+        parse(file).run();
+        return this;
+    }
+
+    /**
+     * Reads all lines from each of the given Files,
+     * and puts the key/value pairs into this config.
+     * Returns itself for convenient chaining.
+     *
+     * <p>
+     * The first file is parsed on the calling thread while the rest are parsed in parallel on dedicated reader threads,
+     * then they are merged in the given order, so a key in a later file overrides the same key in an earlier one.
+     * All files are published as a single change.
+     * </p>
+     */
+    public Config readAllLines(File... files) throws FileNotFoundException, IOException {
+        List<Future<Runnable>> tasks = new ArrayList<>(files.length);
+        for (int f = 1; f < files.length; f++) {
+            File file = files[f];
+            tasks.add(LineReader.submit(() -> parse(file)));
+        }
+        List<Runnable> changes = new ArrayList<>(files.length);
+        if (files.length > 0) {
+            changes.add(parse(files[0]));
+        }
+        for (Future<Runnable> task : tasks) {
             try {
-                input = new FileInputStream(file);
-                readAllLines(input);
-            } finally {
-                if (input != null) {
-                    input.close();
+                changes.add(task.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
                 }
+                throw new IOException(cause);
+            }
+        }
+        hierarchy.begin();
+        try {
+            for (Runnable change : changes) {
+                change.run();
             }
+        } finally {
+            hierarchy.end();
         }
         return this;
     }
 
+    /**
+     * Reads all lines from the given File, or none if it cannot be read,
+     * and returns the change which puts the key/value pairs into this config,
+     * so that the reading is done before the change begins.
+     */
+    Runnable parse(File file) throws IOException {
+        Map<String, String> entries = LineReader.read(file);
+        return () -> apply(entries, Collections.emptyList());
+    }
+
     /**
      * Reads all lines from the given InputStream,
      * and puts the key/value pairs into this config.
@@ -419,18 +1312,14 @@ public class Config {
     /**
      * Writes all key/value pairs in this config to the given File.
      * Returns itself for convenient chaining.
+     *
+     * <p>
+     * The lines are written to a temporary file beside the given File, which is synced
+     * and then renamed over the given File, so readers never see a partially written file.
+     * </p>
      */
     public Config writeAllLines(File file) throws FileNotFoundException, IOException {
-        FileOutputStream output = null;
-        try {
-            output = new FileOutputStream(file);
-            writeAllLines(output);
-        } finally {
-            if (output != null) {
-                output.flush();
-                output.close();
-            }
-        }
+        AtomicFile.write(file, this::writeAllLines);
         return this;
     }
 
@@ -439,26 +1328,152 @@ public class Config {
      * Returns itself for convenient chaining.
      */
     public Config writeAllLines(OutputStream output) throws IOException {
-        for (Entry<String, String> e : getAll().entrySet()) {
-            for (char c : String.format("%s=%s\n", e.getKey(), e.getValue()).toCharArray()) {
-                output.write((int) c);
+        // Encoded as of a single version, and only written once the read is done,
+        // so a slow output never holds up changes, nor can an output which changes this hierarchy deadlock
+        ByteArrayOutputStream lines = hierarchy.read(() -> {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            LineWriter writer = new LineWriter(bytes);
+            try {
+                for (Iterator<Entry<String, String>> i = entries(""); i.hasNext();) {
+                    Entry<String, String> e = i.next();
+                    writer.write(e.getKey(), e.getValue());
+                }
+                writer.flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
             }
-        }
+            return bytes;
+        });
+        lines.writeTo(output);
         return this;
     }
 
+    /**
+     * Writes all key/value pairs in this config to the given File, in the binary format read by BinaryConfig.
+     * Returns itself for convenient chaining.
+     *
+     * <p>
+     * Just as with writeAllLines, the File is replaced atomically.
+     * </p>
+     */
+    public Config writeBinary(File file) throws IOException {
+        return writeBinary(file, true);
+    }
+
+    /**
+     * Writes all key/value pairs in this config to the given File, in the binary format read by BinaryConfig,
+     * with a hash table of the keys iff hashed, or else only the sorted keys, which are smaller and found by binary search.
+     * Returns itself for convenient chaining.
+     */
+    public Config writeBinary(File file, boolean hashed) throws IOException {
+        AtomicFile.write(file, output -> writeBinary(output, hashed));
+        return this;
+    }
+
+    /**
+     * Writes all key/value pairs in this config to the given OutputStream, in the binary format read by BinaryConfig.
+     * Returns itself for convenient chaining.
+     */
+    public Config writeBinary(OutputStream output) throws IOException {
+        return writeBinary(output, true);
+    }
+
+    /**
+     * Writes all key/value pairs in this config to the given OutputStream, in the binary format read by BinaryConfig,
+     * with a hash table of the keys iff hashed.
+     * Returns itself for convenient chaining.
+     */
+    public Config writeBinary(OutputStream output, boolean hashed) throws IOException {
+        BinaryConfig.write(getAll(), output, hashed);
+        return this;
+    }
+
+    /**
+     * Instruments this config, so that it records metrics of its gets, lookups, and prompts.
+     * Returns the metrics, which are shared by all calls.
+     *
+     * <p>
+     * Configs are not instrumented by default, and do not pay for recording metrics until they are.
+     * </p>
+     */
+    public ConfigMetrics instrument() {
+        synchronized (this) {
+            if (metrics == null) {
+                metrics = new ConfigMetrics();
+            }
+            return metrics;
+        }
+    }
+
+    /**
+     * Returns the metrics of this config, or null if it is not instrumented.
+     */
+    public ConfigMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns an immutable snapshot of this config and its hierarchy.
+     *
+     * <p>
+     * The hierarchy is flattened into a single compact table, and lookups are actualized once,
+     * so reads never probe more than one table, nor take any locks.
+     * The snapshot has no streams, so it never asks for missing values, and any put throws.
+     * </p>
+     */
+    public Config freeze() {
+        return new FrozenConfig(this);
+    }
+
     /**
      * Returns a new config containing all of the given keys,
      * and their associated values from this config.
      */
     public Config copy(String... keys) {
-        Config c = new Config();
+        Map<String, String> entries = new HashMap<>();
         for (String k : keys) {
-            if (has(k)) {
-                c.put(k, get(k));
+            // Resolve each key once, rather than once to check it and again to get it
+            Resolution resolution;
+            if (parent == null) {
+                Value value = local(k);
+                resolution = value == null ? null : new Resolution(this, value, 0);
+            } else {
+                resolution = resolve(k);
+            }
+            if (resolution != null) {
+                entries.put(k, expand(resolution.owner, resolution.value, k, null, true));
+            }
+        }
+        return new Config().putAll(entries);
+    }
+
+    /**
+     * Returns a new read-only config with the given key/value pairs on top of this config.
+     *
+     * <p>
+     * Forks are cheap enough to make for each request; a fork holds its entries in a persistent map,
+     * inline while there are only a few, and caches nothing itself but uses the caches of this config.
+     * Forking a fork shares its entries instead of adding another level to the hierarchy.
+     * </p>
+     */
+    public Config fork(Map<String, String> overrides) {
+        return new OverlayConfig(this, OverlayConfig.with(PersistentMap.<Value>empty(), overrides));
+    }
+
+    /**
+     * Parses the given lines into key/value pairs, and returns a new read-only config with them on top of this config.
+     */
+    public Config fork(String... lines) {
+        Map<String, String> overrides = new HashMap<>();
+        for (String line : lines) {
+            int index = line.indexOf('=');
+            if (index < 0) {
+                overrides.put(line, "true");
+            } else {
+                overrides.put(line.substring(0, index), line.substring(index + 1));
             }
         }
-        return c;
+        return fork(overrides);
     }
 
     @Override
@@ -485,4 +1500,41 @@ public class Config {
         }
         return sb.toString();
     }
+
+    /**
+     * The config which supplied a key, and the value it supplied.
+     */
+    static final class Resolution {
+        final Config owner;
+        final Value value;
+        // The number of parents between this config and the owner
+        final int depth;
+        // The version of each config from the one resolving to the owner, or null if never cached
+        private final long[] stamps;
+
+        Resolution(Config owner, Value value, int depth) {
+            this(owner, value, depth, null);
+        }
+
+        Resolution(Config owner, Value value, int depth, long[] stamps) {
+            this.owner = owner;
+            this.value = value;
+            this.depth = depth;
+            this.stamps = stamps;
+        }
+
+        /**
+         * Returns true iff no config from the given config to the owner has changed since this was resolved.
+         */
+        boolean isCurrent(Config config) {
+            Config c = config;
+            for (int i = 0; i < stamps.length; i++, c = c.parent) {
+                long version = c.version;
+                if (version != stamps[i] || (version & 1) != 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
 }
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2018 Stuart Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package config;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * The differences between the effective entries of two configs, as returned by Config.diff.
+ *
+ * <p>
+ * Applying a diff to a config puts the added and changed entries into it, and removes the removed keys from it,
+ * as a single change.
+ * </p>
+ */
+public final class ConfigDiff {
+
+    private final Map<String, String> added;
+    private final Map<String, String> removed;
+    private final Map<String, String> changed;
+
+    ConfigDiff(Map<String, String> added, Map<String, String> removed, Map<String, String> changed) {
+        this.added = Collections.unmodifiableMap(added);
+        this.removed = Collections.unmodifiableMap(removed);
+        this.changed = Collections.unmodifiableMap(changed);
+    }
+
+    /**
+     * Returns the entries only in the other config.
+     */
+    public Map<String, String> getAdded() {
+        return added;
+    }
+
+    /**
+     * Returns the entries only in the original config, with their original values.
+     */
+    public Map<String, String> getRemoved() {
+        return removed;
+    }
+
+    /**
+     * Returns the keys in both configs whose values differ, with their values in the other config.
+     */
+    public Map<String, String> getChanged() {
+        return changed;
+    }
+
+    /**
+     * Returns true iff both configs have the same effective entries.
+     */
+    public boolean isEmpty() {
+        return added.isEmpty() && removed.isEmpty() && changed.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "added: " + added + "\nremoved: " + removed + "\nchanged: " + changed;
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright 2018 Stuart Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package config;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a config in step with a config replicated by a ConfigPrimary.
+ *
+ * <p>
+ * The follower connects to the primary and applies each snapshot or batch of deltas it is sent as a single change.
+ * Whenever the connection is lost it reconnects, and catches up from the last version it applied.
+ * </p>
+ */
+public class ConfigFollower implements Closeable {
+
+    /**
+     * The default time to wait before reconnecting to the primary.
+     */
+    public static final long RETRY_MILLIS = 1000;
+
+    private final Config config;
+    private final InetSocketAddress primary;
+    private final long retry;
+    private final Thread thread;
+    private final Object monitor = new Object();
+    // Guarded by the monitor
+    private long epoch;
+    private long version = -1;
+    private int snapshots;
+    private volatile Socket socket;
+    private volatile boolean closed;
+
+    /**
+     * Starts following the primary at the given address, applying its changes to the given config.
+     */
+    public ConfigFollower(Config config, InetSocketAddress primary) {
+        this(config, primary, RETRY_MILLIS);
+    }
+
+    /**
+     * Starts following the primary at the given address, applying its changes to the given config,
+     * and waiting for the given milliseconds before reconnecting.
+     */
+    public ConfigFollower(Config config, InetSocketAddress primary, long retry) {
+        this.config = config;
+        this.primary = primary;
+        this.retry = retry;
+        thread = new Thread(this::follow, "ConfigFollower");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Returns the config being kept in step.
+     */
+    public Config getConfig() {
+        return config;
+    }
+
+    /**
+     * Returns the version of the primary last applied to the config, or -1 if none has been applied yet.
+     */
+    public long getVersion() {
+        synchronized (monitor) {
+            return version;
+        }
+    }
+
+    /**
+     * Waits for up to the given time for the given version of the primary to be applied to the config,
+     * and returns true iff it was.
+     */
+    public boolean await(long version, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (monitor) {
+            long remaining;
+            while (this.version < version && (remaining = deadline - System.nanoTime()) > 0) {
+                TimeUnit.NANOSECONDS.timedWait(monitor, remaining);
+            }
+            return this.version >= version;
+        }
+    }
+
+    /**
+     * Stops following the primary, leaving the config as it is.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        Socket s = socket;
+        if (s != null) {
+            s.close();
+        }
+        synchronized (monitor) {
+            monitor.notifyAll();
+        }
+        if (Thread.currentThread() != thread) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of snapshots applied, rather than deltas.
+     */
+    int snapshots() {
+        synchronized (monitor) {
+            return snapshots;
+        }
+    }
+
+    private void follow() {
+        while (!closed) {
+            try (Socket s = new Socket()) {
+                socket = s;
+                if (closed) {
+                    break;
+                }
+                s.connect(primary);
+                s.setTcpNoDelay(true);
+                DataOutputStream output = new DataOutputStream(s.getOutputStream());
+                synchronized (monitor) {
+                    output.writeLong(epoch);
+                    output.writeLong(version);
+                }
+                output.flush();
+                DataInputStream input = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+                while (true) {
+                    byte type = input.readByte();
+                    long v = input.readLong();
+                    int length = input.readInt();
+                    if (length < 0) {
+                        throw new IOException("Invalid frame length " + length);
+                    }
+                    byte[] payload = new byte[length];
+                    input.readFully(payload);
+                    apply(type, v, payload);
+                }
+            } catch (IOException e) {
+                /* disconnected, so reconnect */
+            }
+            synchronized (monitor) {
+                if (!closed) {
+                    try {
+                        monitor.wait(retry);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Applies the given frame to the config as a single change.
+     */
+    private void apply(byte type, long v, byte[] payload) throws IOException {
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(payload));
+        long e = type == ConfigPrimary.SNAPSHOT ? input.readLong() : 0;
+        Map<String, String> puts = new HashMap<>();
+        Set<String> removes = new HashSet<>();
+        while (input.available() > 0) {
+            byte op = input.readByte();
+            String key = read(input);
+            if (op == ConfigPrimary.PUT) {
+                puts.put(key, read(input));
+            } else {
+                removes.add(key);
+            }
+        }
+        if (type == ConfigPrimary.SNAPSHOT) {
+            // Remove everything the snapshot lacks, and only put what differs
+            for (Iterator<Entry<String, Value>> i = config.locals(""); i.hasNext();) {
+                Entry<String, Value> entry = i.next();
+                String value = puts.get(entry.getKey());
+                if (value == null) {
+                    removes.add(entry.getKey());
+                } else if (value.equals(entry.getValue().raw)) {
+                    puts.remove(entry.getKey());
+                }
+            }
+        }
+        if (!puts.isEmpty() || !removes.isEmpty()) {
+            config.apply(puts, removes);
+        }
+        synchronized (monitor) {
+            if (type == ConfigPrimary.SNAPSHOT) {
+                epoch = e;
+                snapshots++;
+            }
+            version = v;
+            monitor.notifyAll();
+        }
+    }
+
+    private static String read(DataInputStream input) throws IOException {
+        byte[] bytes = new byte[input.readInt()];
+        input.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,462 @@
+/*
+ * Copyright 2018 Stuart Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package config;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+/**
+ * Makes the changes to a config durable, by appending each change to a journal,
+ * on top of a snapshot file which holds the entries of the config as of the last compaction.
+ *
+ * <p>
+ * Opening a journal loads the snapshot into the config and replays the journal on top of it.
+ * From then on, each change to the config, including values saved by prompts, is appended as a single record,
+ * and does not return until the record is synced; changes made at the same time by other threads are synced together.
+ * Once the journal grows too large, a new snapshot is written in the background and the journal starts again.
+ * </p>
+ *
+ * <pre>
+ * {@code
+ * Each record is a payload length and CRC32 of the payload (ints), followed by the payload:
+ *   for each key changed: an op (byte, 1 put or 2 remove), the key length (int), the key UTF-8 bytes,
+ *                         and for puts, the value length (int) and the value UTF-8 bytes
+ * Replaying stops at the first incomplete or corrupt record, which is truncated.
+ * }
+ * </pre>
+ */
+public class ConfigJournal implements Closeable {
+
+    /**
+     * The default size the journal grows to before it is compacted into a new snapshot.
+     */
+    public static final long COMPACT_BYTES = 1 << 20;
+
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+
+    private final Config config;
+    private final File snapshot;
+    private final File journal;
+    // Receives the changes while the snapshot is being written
+    private final File next;
+    private final long compactBytes;
+    // The keys touched by the current change, only accessed while holding the hierarchy lock
+    private final Set<String> touched = new LinkedHashSet<>();
+    private final Object monitor = new Object();
+    // Held while compacting, so compactions run one at a time
+    private final Object compaction = new Object();
+    // Guarded by the monitor; positions count every byte ever appended, across compactions
+    private FileChannel channel;
+    // The journal before the last compaction, until everything appended to it is synced
+    private FileChannel retired;
+    private long size;
+    private long written;
+    private long synced;
+    private boolean syncing;
+    private final AtomicBoolean compacting = new AtomicBoolean();
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "ConfigJournal");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Recorder recorder = new Recorder() {
+
+        @Override
+        public Config getConfig() {
+            return config;
+        }
+
+        @Override
+        public void touch(String key) {
+            ConfigJournal.this.touch(key);
+        }
+
+        @Override
+        public long append() {
+            return ConfigJournal.this.append();
+        }
+
+        @Override
+        public void sync(long position) {
+            ConfigJournal.this.sync(position);
+        }
+    };
+
+    /**
+     * Opens a journal of the changes to the given config, loading the given snapshot and replaying the given journal.
+     */
+    public ConfigJournal(Config config, File snapshot, File journal) throws IOException {
+        this(config, snapshot, journal, COMPACT_BYTES);
+    }
+
+    /**
+     * Opens a journal of the changes to the given config, loading the given snapshot and replaying the given journal,
+     * which is compacted once it reaches the given number of bytes.
+     */
+    public ConfigJournal(Config config, File snapshot, File journal, long compactBytes) throws IOException {
+        this.config = config;
+        this.snapshot = snapshot;
+        this.journal = journal;
+        this.next = new File(journal.getPath() + ".next");
+        this.compactBytes = compactBytes;
+        config.readAllLines(snapshot);
+        long length = replay(journal);
+        channel = FileChannel.open(journal.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        if (next.exists()) {
+            // A compaction was interrupted, so finish it
+            replay(next);
+            write(capture());
+            channel.truncate(0);
+            channel.force(false);
+            Files.delete(next.toPath());
+            AtomicFile.sync(next);
+        } else {
+            // Drop any incomplete record
+            channel.truncate(length);
+            channel.position(length);
+            size = length;
+        }
+        config.hierarchy.hold();
+        try {
+            config.hierarchy.record(recorder);
+        } finally {
+            config.hierarchy.release();
+        }
+    }
+
+    /**
+     * Returns the config being journaled.
+     */
+    public Config getConfig() {
+        return config;
+    }
+
+    /**
+     * Writes the entries of the config to a new snapshot, and starts the journal again.
+     */
+    public void compact() throws IOException {
+        synchronized (compaction) {
+            Map<String, String> entries;
+            long position;
+            config.hierarchy.hold();
+            try {
+                entries = capture();
+                synchronized (monitor) {
+                    if (retired != null) {
+                        throw new IOException("Journal is not yet synced since the last compaction: " + journal);
+                    }
+                    // Everything appended so far is in the snapshot, or in the retired journal until the snapshot replaces it
+                    retired = channel;
+                    channel = FileChannel.open(next.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+                    size = 0;
+                    position = written;
+                }
+            } finally {
+                config.hierarchy.release();
+            }
+            // Synced without the hierarchy lock, so changes continue meanwhile
+            try {
+                sync(position);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            write(entries);
+            // Changes since the snapshot continue to be appended to the next journal, which now becomes the journal
+            Files.deleteIfExists(journal.toPath());
+            try {
+                Files.move(next.toPath(), journal.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(next.toPath(), journal.toPath());
+            }
+            AtomicFile.sync(journal);
+        }
+    }
+
+    /**
+     * Stops journaling the config, and closes the journal once all changes are synced.
+     */
+    @Override
+    public void close() throws IOException {
+        config.hierarchy.hold();
+        try {
+            config.hierarchy.unrecord(recorder);
+        } finally {
+            config.hierarchy.release();
+        }
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (compaction) {
+            synchronized (monitor) {
+                if (retired != null) {
+                    retired.force(false);
+                    retired.close();
+                    retired = null;
+                }
+                channel.force(false);
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * Called while holding the hierarchy lock, before the given key of the config is changed.
+     */
+    void touch(String key) {
+        touched.add(key);
+    }
+
+    /**
+     * Called while holding the hierarchy lock, once a change to the config ends,
+     * to append a record of the keys it touched.
+     * Returns the position to sync up to, or -1 if the change touched no keys.
+     */
+    long append() {
+        if (touched.isEmpty()) {
+            return -1;
+        }
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream payload = new DataOutputStream(bytes);
+            for (String key : touched) {
+                Value value = config.local(key);
+                payload.writeByte(value == null ? REMOVE : PUT);
+                write(payload, key);
+                if (value != null) {
+                    write(payload, value.raw);
+                }
+            }
+            touched.clear();
+            CRC32 crc = new CRC32();
+            crc.update(bytes.toByteArray());
+            ByteBuffer record = ByteBuffer.allocate(8 + bytes.size());
+            record.putInt(bytes.size()).putInt((int) crc.getValue()).put(bytes.toByteArray()).flip();
+            long position;
+            synchronized (monitor) {
+                while (record.hasRemaining()) {
+                    channel.write(record);
+                }
+                size += record.limit();
+                written += record.limit();
+                position = written;
+                if (size >= compactBytes && compacting.compareAndSet(false, true)) {
+                    compactor.execute(() -> {
+                        try {
+                            compact();
+                        } catch (IOException e) {
+                            /* ignored, the journal keeps growing until the next attempt */
+                        } finally {
+                            compacting.set(false);
+                        }
+                    });
+                }
+            }
+            return position;
+        } catch (IOException e) {
+            touched.clear();
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Waits until everything appended up to the given position is synced,
+     * syncing it along with any other appended changes unless another thread is already syncing.
+     * The retired journal, if any, is synced first and then closed.
+     */
+    void sync(long position) {
+        while (true) {
+            FileChannel c;
+            FileChannel r;
+            long target;
+            synchronized (monitor) {
+                // A retired journal is synced and closed even if everything up to the position already is,
+                // so the next compaction never finds it still open
+                if (synced >= position && retired == null) {
+                    return;
+                }
+                if (syncing) {
+                    try {
+                        monitor.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new UncheckedIOException(new InterruptedIOException());
+                    }
+                    continue;
+                }
+                syncing = true;
+                c = channel;
+                r = retired;
+                target = written;
+            }
+            IOException failure = null;
+            try {
+                if (r != null) {
+                    r.force(false);
+                }
+                c.force(false);
+            } catch (IOException e) {
+                failure = e;
+            } finally {
+                synchronized (monitor) {
+                    syncing = false;
+                    if (failure == null) {
+                        if (target > synced) {
+                            synced = target;
+                        }
+                        if (r != null && retired == r) {
+                            retired = null;
+                        } else {
+                            r = null;
+                        }
+                    }
+                    monitor.notifyAll();
+                }
+            }
+            if (failure == null && r != null) {
+                try {
+                    r.close();
+                } catch (IOException e) {
+                    /* ignored, everything written to it is already synced */
+                }
+            }
+            if (failure != null) {
+                synchronized (monitor) {
+                    // The journal may have been synced and closed first
+                    if (synced < position) {
+                        throw new UncheckedIOException(failure);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the entries of the config alone.
+     */
+    private Map<String, String> capture() {
+        Map<String, String> entries = new HashMap<>();
+        for (Iterator<Entry<String, Value>> i = config.locals(""); i.hasNext();) {
+            Entry<String, Value> e = i.next();
+            entries.put(e.getKey(), e.getValue().raw);
+        }
+        return entries;
+    }
+
+    /**
+     * Replaces the snapshot with the given entries.
+     */
+    private void write(Map<String, String> entries) throws IOException {
+        AtomicFile.write(snapshot, output -> {
+            LineWriter writer = new LineWriter(output);
+            for (Entry<String, String> e : entries.entrySet()) {
+                writer.write(e.getKey(), e.getValue());
+            }
+            writer.flush();
+        });
+    }
+
+    /**
+     * Applies each complete record in the given file to the config, and returns the length of the complete records.
+     */
+    private long replay(File file) throws IOException {
+        long length = 0;
+        if (!file.exists()) {
+            return length;
+        }
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                byte[] payload;
+                try {
+                    int size = input.readInt();
+                    int crc = input.readInt();
+                    if (size < 0 || size > file.length()) {
+                        break;
+                    }
+                    payload = new byte[size];
+                    input.readFully(payload);
+                    CRC32 actual = new CRC32();
+                    actual.update(payload);
+                    if ((int) actual.getValue() != crc) {
+                        break;
+                    }
+                } catch (EOFException e) {
+                    break;
+                }
+                Map<String, String> puts = new HashMap<>();
+                Set<String> removes = new HashSet<>();
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+                while (record.available() > 0) {
+                    byte op = record.readByte();
+                    String key = read(record);
+                    if (op == PUT) {
+                        puts.put(key, read(record));
+                    } else {
+                        removes.add(key);
+                    }
+                }
+                config.apply(puts, removes);
+                length += 8 + payload.length;
+            }
+        }
+        return length;
+    }
+
+    private static void write(DataOutputStream output, String string) throws IOException {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    private static String read(DataInputStream input) throws IOException {
+        byte[] bytes = new byte[input.readInt()];
+        input.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
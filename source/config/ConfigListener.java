@@ -0,0 +1,31 @@
+/*
+ * Copyright 2018 Stuart Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package config;
+
+import java.util.Map;
+
+/**
+ * Listens for changes to the effective values of keys in a config.
+ */
+public interface ConfigListener {
+
+    /**
+     * Called with a batch of changes to the given config,
+     * mapping each changed key to its new value, or to null if the key was removed.
+     */
+    void changed(Config config, Map<String, String> changes);
+}
@@ -0,0 +1,284 @@
+/*
+ * Copyright 2018 Stuart Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package config;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Metrics recorded by an instrumented config.
+ *
+ * <p>
+ * All counters are LongAdders, so threads recording metrics at the same time update separate cells.
+ * Configs which are not instrumented record nothing, and pay only for a null check.
+ * </p>
+ */
+public final class ConfigMetrics implements ConfigMetricsMBean {
+
+    /**
+     * The number of keys returned by getHotKeys.
+     */
+    public static final int HOT_KEYS = 20;
+
+    // Hits at this depth or deeper share the last counter
+    private static final int DEPTHS = 16;
+    private static final int LATENCIES = 64;
+
+    private final Map<String, LongAdder> hits = new ConcurrentHashMap<>();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder[] depths = adders(DEPTHS);
+    private final LongAdder[] latencies = adders(LATENCIES);
+    private final LongAdder prompts = new LongAdder();
+    private final LongAdder promptWait = new LongAdder();
+
+    ConfigMetrics() {
+    }
+
+    private static LongAdder[] adders(int count) {
+        LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    private static long[] sums(LongAdder[] adders) {
+        long[] sums = new long[adders.length];
+        for (int i = 0; i < adders.length; i++) {
+            sums[i] = adders[i].sum();
+        }
+        return sums;
+    }
+
+    /**
+     * Records that the given key was found at the given depth of the hierarchy.
+     */
+    void hit(String key, int depth) {
+        LongAdder adder = hits.get(key);
+        if (adder == null) {
+            adder = hits.computeIfAbsent(key, k -> new LongAdder());
+        }
+        adder.increment();
+        depths[Math.min(depth, DEPTHS - 1)].increment();
+    }
+
+    /**
+     * Records that a key was not found.
+     */
+    void miss() {
+        misses.increment();
+    }
+
+    /**
+     * Records that a lookup took the given nanoseconds to actualize.
+     */
+    void lookup(long nanos) {
+        latencies[Math.min(64 - Long.numberOfLeadingZeros(Math.max(nanos, 0)), LATENCIES - 1)].increment();
+    }
+
+    /**
+     * Records that the streams took the given nanoseconds to answer.
+     */
+    void prompt(long nanos) {
+        prompts.increment();
+        promptWait.add(nanos);
+    }
+
+    /**
+     * Returns the number of times each key was found.
+     */
+    public Map<String, Long> getHitsByKey() {
+        Map<String, Long> counts = new HashMap<>();
+        for (Entry<String, LongAdder> e : hits.entrySet()) {
+            counts.put(e.getKey(), e.getValue().sum());
+        }
+        return counts;
+    }
+
+    @Override
+    public long getHits() {
+        long sum = 0;
+        for (LongAdder depth : depths) {
+            sum += depth.sum();
+        }
+        return sum;
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @Override
+    public String[] getHotKeys() {
+        List<Entry<String, Long>> counts = new ArrayList<>(getHitsByKey().entrySet());
+        Collections.sort(counts, (a, b) -> Long.compare(b.getValue(), a.getValue()));
+        String[] keys = new String[Math.min(HOT_KEYS, counts.size())];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = counts.get(i).getKey() + "=" + counts.get(i).getValue();
+        }
+        return keys;
+    }
+
+    @Override
+    public long[] getResolutionDepths() {
+        return sums(depths);
+    }
+
+    @Override
+    public long[] getLookupLatencies() {
+        return sums(latencies);
+    }
+
+    @Override
+    public long getPrompts() {
+        return prompts.sum();
+    }
+
+    @Override
+    public long getPromptWaitNanos() {
+        return promptWait.sum();
+    }
+
+    @Override
+    public void reset() {
+        hits.clear();
+        misses.reset();
+        for (LongAdder depth : depths) {
+            depth.reset();
+        }
+        for (LongAdder latency : latencies) {
+            latency.reset();
+        }
+        prompts.reset();
+        promptWait.reset();
+    }
+
+    /**
+     * Returns a copy of the current metrics, which is not affected by later changes.
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(getHitsByKey(), getMisses(), getResolutionDepths(), getLookupLatencies(), getPrompts(), getPromptWaitNanos());
+    }
+
+    /**
+     * Registers these metrics with the platform MBean server under the given name,
+     * returning the name of the MBean.
+     */
+    public ObjectName register(String name) throws JMException {
+        ObjectName objectName = new ObjectName("config:type=ConfigMetrics,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        return objectName;
+    }
+
+    /**
+     * Unregisters the MBean with the given name from the platform MBean server.
+     */
+    public static void unregister(ObjectName name) throws JMException {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+    }
+
+    @Override
+    public String toString() {
+        return "hits: " + getHits() + ", misses: " + getMisses() + ", prompts: " + getPrompts();
+    }
+
+    /**
+     * A copy of the metrics at a moment in time.
+     */
+    public static final class Snapshot {
+
+        private final Map<String, Long> hitsByKey;
+        private final long misses;
+        private final long[] resolutionDepths;
+        private final long[] lookupLatencies;
+        private final long prompts;
+        private final long promptWaitNanos;
+
+        private Snapshot(Map<String, Long> hitsByKey, long misses, long[] resolutionDepths, long[] lookupLatencies, long prompts, long promptWaitNanos) {
+            this.hitsByKey = Collections.unmodifiableMap(hitsByKey);
+            this.misses = misses;
+            this.resolutionDepths = resolutionDepths;
+            this.lookupLatencies = lookupLatencies;
+            this.prompts = prompts;
+            this.promptWaitNanos = promptWaitNanos;
+        }
+
+        /**
+         * Returns the number of times each key was found.
+         */
+        public Map<String, Long> getHitsByKey() {
+            return hitsByKey;
+        }
+
+        /**
+         * Returns the number of gets which found their key.
+         */
+        public long getHits() {
+            long sum = 0;
+            for (long depth : resolutionDepths) {
+                sum += depth;
+            }
+            return sum;
+        }
+
+        /**
+         * Returns the number of gets which did not find their key.
+         */
+        public long getMisses() {
+            return misses;
+        }
+
+        /**
+         * Returns the number of hits resolved at each depth of the hierarchy.
+         */
+        public long[] getResolutionDepths() {
+            return resolutionDepths.clone();
+        }
+
+        /**
+         * Returns the number of lookups actualized within each power of two nanoseconds.
+         */
+        public long[] getLookupLatencies() {
+            return lookupLatencies.clone();
+        }
+
+        /**
+         * Returns the number of times the config asked its streams for a value.
+         */
+        public long getPrompts() {
+            return prompts;
+        }
+
+        /**
+         * Returns the total nanoseconds spent waiting for the streams to answer.
+         */
+        public long getPromptWaitNanos() {
+            return promptWaitNanos;
+        }
+    }
+}
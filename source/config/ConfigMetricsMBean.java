@@ -0,0 +1,65 @@
+/*
+ * Copyright 2018 Stuart Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package config;
+
+/**
+ * The JMX management interface of ConfigMetrics.
+ */
+public interface ConfigMetricsMBean {
+
+    /**
+     * Returns the number of gets which found their key.
+     */
+    long getHits();
+
+    /**
+     * Returns the number of gets which did not find their key in the config or its hierarchy.
+     */
+    long getMisses();
+
+    /**
+     * Returns the most frequently found keys and their hit counts, in the format &lt;key&gt;=&lt;count&gt;.
+     */
+    String[] getHotKeys();
+
+    /**
+     * Returns the number of hits resolved at each depth of the hierarchy,
+     * where zero is the config itself, and the last element counts all deeper hits.
+     */
+    long[] getResolutionDepths();
+
+    /**
+     * Returns the number of lookups actualized within each power of two nanoseconds,
+     * where element i counts lookups which took less than 2^i nanoseconds.
+     */
+    long[] getLookupLatencies();
+
+    /**
+     * Returns the number of times the config asked its streams for a value.
+     */
+    long getPrompts();
+
+    /**
+     * Returns the total nanoseconds spent waiting for the streams to answer.
+     */
+    long getPromptWaitNanos();
+
+    /**
+     * Resets all metrics to zero.
+     */
+    void reset();
+}
@@ -0,0 +1,446 @@
+/*
+ * Copyright 2018 Stuart Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Replicates the changes made to a config to any number of followers, which connect over TCP.
+ *
+ * <p>
+ * Each change to the config is recorded as a delta with the next version.
+ * A follower connects with the epoch and version it last applied, and is sent the deltas it missed,
+ * or a snapshot of the config if it has fallen further behind than the retained deltas, or follows another primary.
+ * From then on, the deltas a follower has not been sent are merged into a single batch whenever it is ready for more,
+ * so slow followers and bursts of changes cost one write rather than one per change.
+ * All followers are served by a single thread.
+ * </p>
+ *
+ * <pre>
+ * {@code
+ * A follower sends its epoch and version (longs), and then receives frames:
+ *   a type (byte, 1 snapshot or 2 delta), the version after the frame (long), the payload length (int), and the payload;
+ *   snapshots start with the epoch of the primary (long), and are followed by a put of every entry,
+ *   deltas are a put or remove of each key changed,
+ *   each encoded as an op (byte, 1 put or 2 remove), the key length (int), the key UTF-8 bytes,
+ *   and for puts, the value length (int) and the value UTF-8 bytes
+ * }
+ * </pre>
+ */
+public class ConfigPrimary implements Closeable {
+
+    /**
+     * The default number of deltas retained for followers to catch up from.
+     */
+    public static final int BACKLOG = 4096;
+
+    static final byte SNAPSHOT = 1;
+    static final byte DELTA = 2;
+    static final byte PUT = 1;
+    static final byte REMOVE = 2;
+
+    private final Config config;
+    private final int backlog;
+    // Distinguishes the versions of this primary from those of any other
+    private final long epoch;
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private final Thread thread;
+    // The keys touched by the current change, only accessed while holding the hierarchy lock
+    private final Set<String> touched = new LinkedHashSet<>();
+    private final Object monitor = new Object();
+    // Guarded by the monitor; the retained deltas are those after the floor, up to the version
+    private final ArrayDeque<Delta> deltas = new ArrayDeque<>();
+    private long version;
+    private long floor;
+    private volatile boolean closed;
+    private final Recorder recorder = new Recorder() {
+
+        @Override
+        public Config getConfig() {
+            return config;
+        }
+
+        @Override
+        public void touch(String key) {
+            touched.add(key);
+        }
+
+        @Override
+        public long append() {
+            return ConfigPrimary.this.append();
+        }
+
+        @Override
+        public void sync(long position) {
+            /* nothing to wait for, followers are sent changes asynchronously */
+        }
+    };
+
+    /**
+     * A change to the config, mapping each key changed to its new value, or to null if it was removed.
+     */
+    private static final class Delta {
+
+        final long version;
+        final Map<String, String> changes;
+
+        Delta(long version, Map<String, String> changes) {
+            this.version = version;
+            this.changes = changes;
+        }
+    }
+
+    /**
+     * The state of a connected follower.
+     */
+    private static final class Follower {
+
+        final ByteBuffer hello = ByteBuffer.allocate(16);
+        // The version the follower will have once sent the output, or -1 until it needs a snapshot
+        long version = -1;
+        boolean ready;
+        ByteBuffer output;
+    }
+
+    /**
+     * Starts replicating the changes to the given config to followers which connect to the given address.
+     */
+    public ConfigPrimary(Config config, InetSocketAddress address) throws IOException {
+        this(config, address, BACKLOG);
+    }
+
+    /**
+     * Starts replicating the changes to the given config to followers which connect to the given address,
+     * retaining the given number of deltas for followers to catch up from.
+     */
+    public ConfigPrimary(Config config, InetSocketAddress address, int backlog) throws IOException {
+        this.config = config;
+        this.backlog = backlog;
+        this.epoch = new Random().nextLong() | 1;
+        selector = Selector.open();
+        try {
+            server = ServerSocketChannel.open();
+            server.socket().setReuseAddress(true);
+            server.bind(address);
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            selector.close();
+            throw e;
+        }
+        config.hierarchy.hold();
+        try {
+            config.hierarchy.record(recorder);
+        } finally {
+            config.hierarchy.release();
+        }
+        thread = new Thread(this::serve, "ConfigPrimary");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Returns the config being replicated.
+     */
+    public Config getConfig() {
+        return config;
+    }
+
+    /**
+     * Returns the address followers connect to.
+     */
+    public InetSocketAddress getAddress() throws IOException {
+        return (InetSocketAddress) server.getLocalAddress();
+    }
+
+    /**
+     * Returns the version of the latest change to the config.
+     */
+    public long getVersion() {
+        synchronized (monitor) {
+            return version;
+        }
+    }
+
+    /**
+     * Stops replicating the config, and disconnects all followers.
+     */
+    @Override
+    public void close() throws IOException {
+        config.hierarchy.hold();
+        try {
+            config.hierarchy.unrecord(recorder);
+        } finally {
+            config.hierarchy.release();
+        }
+        closed = true;
+        selector.wakeup();
+        if (Thread.currentThread() != thread) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Called while holding the hierarchy lock, once a change to the config ends,
+     * to record a delta of the keys it touched.
+     */
+    private long append() {
+        if (touched.isEmpty()) {
+            return -1;
+        }
+        Map<String, String> changes = new LinkedHashMap<>();
+        for (String key : touched) {
+            Value value = config.local(key);
+            changes.put(key, value == null ? null : value.raw);
+        }
+        touched.clear();
+        synchronized (monitor) {
+            deltas.addLast(new Delta(++version, changes));
+            while (deltas.size() > backlog) {
+                floor = deltas.removeFirst().version;
+            }
+        }
+        selector.wakeup();
+        return -1;
+    }
+
+    private void serve() {
+        try {
+            while (!closed) {
+                selector.select();
+                Iterator<SelectionKey> i = selector.selectedKeys().iterator();
+                while (i.hasNext()) {
+                    SelectionKey key = i.next();
+                    i.remove();
+                    try {
+                        if (key.isValid() && key.isAcceptable()) {
+                            accept();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            read(key);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            write(key);
+                        }
+                    } catch (IOException e) {
+                        drop(key);
+                    }
+                }
+                publish();
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            /* closed */
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                drop(key);
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                /* ignored */
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            channel.register(selector, SelectionKey.OP_READ, new Follower());
+        }
+    }
+
+    /**
+     * Reads the epoch and version a follower starts from, and afterwards only watches for it disconnecting.
+     */
+    private void read(SelectionKey key) throws IOException {
+        SocketChannel channel = (SocketChannel) key.channel();
+        Follower follower = (Follower) key.attachment();
+        ByteBuffer buffer = follower.ready ? ByteBuffer.allocate(64) : follower.hello;
+        if (channel.read(buffer) < 0) {
+            drop(key);
+            return;
+        }
+        if (!follower.ready && !buffer.hasRemaining()) {
+            buffer.flip();
+            long e = buffer.getLong();
+            long v = buffer.getLong();
+            synchronized (monitor) {
+                follower.version = e == epoch && v >= floor && v <= version ? v : -1;
+            }
+            follower.ready = true;
+        }
+    }
+
+    private void write(SelectionKey key) throws IOException {
+        Follower follower = (Follower) key.attachment();
+        ((SocketChannel) key.channel()).write(follower.output);
+        if (!follower.output.hasRemaining()) {
+            follower.output = null;
+            key.interestOps(SelectionKey.OP_READ);
+        } else {
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * Sends each ready follower what it is missing, encoding each batch once for all followers at the same version.
+     */
+    private void publish() throws IOException {
+        long latest = getVersion();
+        Map<Long, ByteBuffer> batches = new HashMap<>();
+        ByteBuffer snapshot = null;
+        long snapshotVersion = 0;
+        for (SelectionKey key : selector.keys()) {
+            Object attachment = key.attachment();
+            if (!key.isValid() || !(attachment instanceof Follower)) {
+                continue;
+            }
+            Follower follower = (Follower) attachment;
+            if (!follower.ready || follower.output != null || follower.version == latest) {
+                continue;
+            }
+            ByteBuffer batch = follower.version < 0 ? null : batches.get(follower.version);
+            long to = latest;
+            if (batch == null && follower.version >= 0) {
+                batch = batch(follower.version, latest);
+                if (batch != null) {
+                    batches.put(follower.version, batch);
+                }
+            }
+            if (batch == null) {
+                // Too far behind the retained deltas
+                if (snapshot == null) {
+                    config.hierarchy.hold();
+                    try {
+                        snapshotVersion = getVersion();
+                        snapshot = snapshot(snapshotVersion);
+                    } finally {
+                        config.hierarchy.release();
+                    }
+                }
+                batch = snapshot;
+                to = snapshotVersion;
+            }
+            follower.output = batch.duplicate();
+            follower.version = to;
+            try {
+                write(key);
+            } catch (IOException e) {
+                drop(key);
+            }
+        }
+    }
+
+    /**
+     * Returns a frame of the deltas after the given version up to the given version merged together,
+     * or null if some were not retained.
+     */
+    private ByteBuffer batch(long from, long to) {
+        Map<String, String> changes = new LinkedHashMap<>();
+        synchronized (monitor) {
+            if (from < floor) {
+                return null;
+            }
+            for (Delta delta : deltas) {
+                if (delta.version > to) {
+                    break;
+                }
+                if (delta.version > from) {
+                    changes.putAll(delta.changes);
+                }
+            }
+        }
+        return frame(DELTA, to, null, changes);
+    }
+
+    /**
+     * Returns a frame of every entry of the config, which must be called while holding back changes.
+     */
+    private ByteBuffer snapshot(long version) {
+        Map<String, String> entries = new LinkedHashMap<>();
+        for (Iterator<Entry<String, Value>> i = config.locals(""); i.hasNext();) {
+            Entry<String, Value> e = i.next();
+            entries.put(e.getKey(), e.getValue().raw);
+        }
+        return frame(SNAPSHOT, version, epoch, entries);
+    }
+
+    private static ByteBuffer frame(byte type, long version, Long epoch, Map<String, String> changes) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream payload = new DataOutputStream(bytes);
+            if (epoch != null) {
+                payload.writeLong(epoch);
+            }
+            for (Entry<String, String> e : changes.entrySet()) {
+                payload.writeByte(e.getValue() == null ? REMOVE : PUT);
+                write(payload, e.getKey());
+                if (e.getValue() != null) {
+                    write(payload, e.getValue());
+                }
+            }
+            ByteBuffer frame = ByteBuffer.allocate(13 + bytes.size());
+            frame.put(type).putLong(version).putInt(bytes.size()).put(bytes.toByteArray()).flip();
+            return frame;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void write(DataOutputStream output, String string) throws IOException {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    private static void drop(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            /* ignored */
+        }
+    }
+}
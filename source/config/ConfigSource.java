@@ -0,0 +1,106 @@
+/*
+ * Copyright 2018 Stuart Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package config;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.channels.Channels;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Supplies the key/value pairs of a layer in a config, such as environment variables or an external service.
+ *
+ * <p>
+ * Sources are plugged into a hierarchy by a SourceConfig, which caches what they fetch.
+ * </p>
+ */
+public interface ConfigSource {
+
+    // How long a remote source waits to connect, and then for each read
+    int TIMEOUT_MILLIS = 10000;
+
+    /**
+     * Returns the environment variables.
+     */
+    static ConfigSource environment() {
+        return System::getenv;
+    }
+
+    /**
+     * Returns the system properties.
+     */
+    static ConfigSource properties() {
+        return () -> {
+            Map<String, String> entries = new HashMap<>();
+            for (String name : System.getProperties().stringPropertyNames()) {
+                String value = System.getProperty(name);
+                if (value != null) {
+                    entries.put(name, value);
+                }
+            }
+            return entries;
+        };
+    }
+
+    /**
+     * Returns a remote source, such as a key/value service over HTTP,
+     * which fetches lines of &lt;key&gt;=&lt;value&gt; from the given URL.
+     *
+     * <p>
+     * Each fetch reads the whole document, and fails if the server does not answer with 200 OK,
+     * or does not connect or send within the timeout.
+     * </p>
+     */
+    static ConfigSource remote(URL url) {
+        return () -> {
+            URLConnection connection = url.openConnection();
+            connection.setConnectTimeout(TIMEOUT_MILLIS);
+            connection.setReadTimeout(TIMEOUT_MILLIS);
+            connection.setUseCaches(false);
+            try {
+                if (connection instanceof HttpURLConnection) {
+                    int code = ((HttpURLConnection) connection).getResponseCode();
+                    if (code != HttpURLConnection.HTTP_OK) {
+                        throw new IOException("Unexpected response " + code + " from " + url);
+                    }
+                }
+                Map<String, String> entries = new HashMap<>();
+                try (InputStream input = connection.getInputStream()) {
+                    LineReader.read(Channels.newChannel(input), 8192, (key, value) -> {
+                        if (!key.isEmpty()) {
+                            entries.put(key, value);
+                        }
+                    });
+                }
+                return entries;
+            } finally {
+                if (connection instanceof HttpURLConnection) {
+                    ((HttpURLConnection) connection).disconnect();
+                }
+            }
+        };
+    }
+
+    /**
+     * Fetches all of the key/value pairs of this source, which may be slow.
+     */
+    Map<String, String> fetch() throws IOException;
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright 2018 Stuart Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package config;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Loads args and files into a config, just as Config.create does,
+ * and then reloads each file whenever it changes until closed.
+ *
+ * <p>
+ * Bursts of changes are debounced, only the files which changed are read again,
+ * and the resulting changes to the config are published as a single change,
+ * so readers never see a partially applied file.
+ * </p>
+ *
+ * <p>
+ * The files win over runtime puts to the config: each key whose value a reload changes is set to its value
+ * from the last file which has it, or from the args, overwriting any value put since,
+ * and is removed if no file nor arg has it any more.
+ * Runtime puts to keys which a reload does not change are kept.
+ * </p>
+ *
+ * <p>
+ * A reload which fails, whether reading a file or applying the changes, is reported to the error handler
+ * and the watcher keeps running, so the next change to the files tries again.
+ * By default failures are reported to the uncaught exception handler of the watching thread.
+ * </p>
+ */
+public class ConfigWatcher implements Closeable {
+
+    /**
+     * The default time to wait for a burst of changes to end before reloading.
+     */
+    public static final long DEBOUNCE_MILLIS = 100;
+
+    private final Config config;
+    private final Map<String, String> args;
+    private final File[] files;
+    // The key/value pairs last read from each file
+    private final List<Map<String, String>> layers = new ArrayList<>();
+    private final Map<Path, List<Integer>> indices = new HashMap<>();
+    private final Map<WatchKey, Path> directories = new HashMap<>();
+    // The keys whose values have changed in the files but are not yet applied to the config
+    private final Set<String> affected = new HashSet<>();
+    private final WatchService service;
+    private final long debounce;
+    private final Consumer<Exception> errors;
+    private final Thread thread;
+
+    /**
+     * Creates a watcher which loads the given args and files into the given config.
+     */
+    public ConfigWatcher(Config config, String[] args, File[] files) throws IOException {
+        this(config, args, files, DEBOUNCE_MILLIS);
+    }
+
+    /**
+     * Creates a watcher which loads the given args and files into the given config,
+     * and waits for the given milliseconds of quiet before reloading changed files.
+     */
+    public ConfigWatcher(Config config, String[] args, File[] files, long debounce) throws IOException {
+        this(config, args, files, debounce, null);
+    }
+
+    /**
+     * Creates a watcher which loads the given args and files into the given config,
+     * waits for the given milliseconds of quiet before reloading changed files,
+     * and reports reloads which fail to the given error handler, or to the uncaught exception handler if null.
+     */
+    public ConfigWatcher(Config config, String[] args, File[] files, long debounce, Consumer<Exception> errors) throws IOException {
+        this.config = config;
+        this.errors = errors;
+        this.args = Config.create(args).getAll();
+        this.files = files == null ? new File[0] : files;
+        this.debounce = debounce;
+        Map<String, String> entries = new HashMap<>(this.args);
+        for (int f = 0; f < this.files.length; f++) {
+            Map<String, String> layer = LineReader.read(this.files[f]);
+            layers.add(layer);
+            entries.putAll(layer);
+        }
+        config.apply(entries, Collections.<String>emptySet());
+        service = FileSystems.getDefault().newWatchService();
+        try {
+            for (int f = 0; f < this.files.length; f++) {
+                Path path = this.files[f].toPath().toAbsolutePath().normalize();
+                List<Integer> list = indices.get(path);
+                if (list == null) {
+                    list = new ArrayList<>();
+                    indices.put(path, list);
+                }
+                list.add(f);
+                Path directory = path.getParent();
+                if (!directories.containsValue(directory)) {
+                    directories.put(directory.register(service,
+                            StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_MODIFY,
+                            StandardWatchEventKinds.ENTRY_DELETE), directory);
+                }
+            }
+        } catch (IOException e) {
+            service.close();
+            throw e;
+        }
+        thread = new Thread(this::watch, "ConfigWatcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Returns the config being reloaded.
+     */
+    public Config getConfig() {
+        return config;
+    }
+
+    /**
+     * Stops watching the files.
+     */
+    @Override
+    public void close() throws IOException {
+        service.close();
+        if (Thread.currentThread() != thread) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                Set<Integer> changed = new TreeSet<>();
+                collect(service.take(), changed);
+                // Wait for the burst of changes to end
+                WatchKey key;
+                while ((key = service.poll(debounce, TimeUnit.MILLISECONDS)) != null) {
+                    collect(key, changed);
+                }
+                if (!changed.isEmpty()) {
+                    try {
+                        reload(changed);
+                    } catch (RuntimeException e) {
+                        // The keys which were not applied are applied by the next reload
+                        report(e);
+                    }
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            /* closed */
+        }
+    }
+
+    /**
+     * Reports the given failure to the error handler, without letting it stop the watcher.
+     */
+    private void report(Exception e) {
+        try {
+            if (errors != null) {
+                errors.accept(e);
+            } else {
+                thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+            }
+        } catch (RuntimeException ignored) {
+            /* ignored */
+        }
+    }
+
+    /**
+     * Adds the indices of all files changed by the events of the given key to the given set.
+     */
+    private void collect(WatchKey key, Set<Integer> changed) {
+        Path directory = directories.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                // Events were lost, so any file could have changed
+                for (int f = 0; f < files.length; f++) {
+                    changed.add(f);
+                }
+            } else if (directory != null) {
+                List<Integer> list = indices.get(directory.resolve((Path) event.context()));
+                if (list != null) {
+                    changed.addAll(list);
+                }
+            }
+        }
+        key.reset();
+    }
+
+    /**
+     * Reads the given files again, and applies the differences to the config as a single change.
+     */
+    private void reload(Set<Integer> changed) {
+        for (int f : changed) {
+            Map<String, String> previous = layers.get(f);
+            Map<String, String> current;
+            try {
+                current = LineReader.read(files[f]);
+            } catch (IOException e) {
+                // Keep the previous contents, the next change will try again
+                report(e);
+                continue;
+            }
+            layers.set(f, current);
+            for (Map.Entry<String, String> e : current.entrySet()) {
+                if (!e.getValue().equals(previous.get(e.getKey()))) {
+                    affected.add(e.getKey());
+                }
+            }
+            for (String key : previous.keySet()) {
+                if (!current.containsKey(key)) {
+                    affected.add(key);
+                }
+            }
+        }
+        if (affected.isEmpty()) {
+            return;
+        }
+        // Cleared only once applied, so a failed apply is retried by the next reload
+        Map<String, String> puts = new HashMap<>();
+        Set<String> removes = new HashSet<>();
+        for (String key : affected) {
+            String value = effective(key);
+            if (value == null) {
+                removes.add(key);
+            } else {
+                puts.put(key, value);
+            }
+        }
+        config.apply(puts, removes);
+        affected.clear();
+    }
+
+    /**
+     * Returns the value of the given key from the last file which has it, or from the args.
+     */
+    private String effective(String key) {
+        for (int f = layers.size() - 1; f >= 0; f--) {
+            String value = layers.get(f).get(key);
+            if (value != null) {
+                return value;
+            }
+        }
+        return args.get(key);
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright 2018 Stuart Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package config;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * An immutable snapshot of a config and its hierarchy.
+ *
+ * <p>
+ * Keys are held sorted, alongside their raw and actualized values, and are found through an
+ * open-addressing table of indices into those arrays.
+ * </p>
+ */
+final class FrozenConfig extends Config {
+
+    private final String[] keys;
+    private final Value[] raws;
+    // Shares the raw value iff it is not a lookup
+    private final Value[] values;
+    // Holds the index of each key plus one, zero marks an empty slot
+    private final int[] table;
+    private final int mask;
+    private final long digest;
+
+    FrozenConfig(Config config) {
+        super(null, null, null, false);
+        // Raw and actualized values as of a single version, without asking the streams for missing keys
+        Map<String, String[]> entries = config.hierarchy.read(() -> {
+            Map<String, String[]> snapshot = new HashMap<>();
+            for (Entry<String, String> e : config.getAll().entrySet()) {
+                String value = e.getValue().startsWith("?") ? config.expand(e.getKey(), null) : e.getValue();
+                snapshot.put(e.getKey(), new String[] { e.getValue(), value });
+            }
+            return snapshot;
+        });
+        keys = entries.keySet().toArray(new String[entries.size()]);
+        Arrays.sort(keys);
+        raws = new Value[keys.length];
+        values = new Value[keys.length];
+        int capacity = Integer.highestOneBit(Math.max(keys.length, 1) * 2 - 1) << 1;
+        table = new int[capacity];
+        mask = capacity - 1;
+        // Equal values share a single instance
+        Map<String, String> interned = new HashMap<>();
+        long sum = 0;
+        for (int i = 0; i < keys.length; i++) {
+            String[] entry = entries.get(keys[i]);
+            raws[i] = new Value(intern(interned, entry[0]));
+            sum += hash(keys[i], raws[i].raw);
+            if (raws[i].lookup == null) {
+                values[i] = raws[i];
+            } else {
+                values[i] = new Value(intern(interned, entry[1] == null ? raws[i].raw : entry[1]));
+            }
+            int slot = hash(keys[i]) & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = i + 1;
+        }
+        digest = sum;
+    }
+
+    private static String intern(Map<String, String> interned, String s) {
+        String i = interned.putIfAbsent(s, s);
+        return i == null ? s : i;
+    }
+
+    private static int hash(String key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Returns the index of the given key, or -1 if this config does not have the given key.
+     */
+    private int indexOf(String key) {
+        for (int slot = hash(key) & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+            int index = table[slot] - 1;
+            if (keys[index].equals(key)) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public boolean has(String key) {
+        return indexOf(key) >= 0;
+    }
+
+    /**
+     * Returns the actualized value of the given key.
+     *
+     * <p>
+     * Shadowed values were flattened away, so the value is returned whether or not it is one of the options,
+     * just as a config without streams would.
+     * The hit or miss is recorded in the given metrics, as the base class does, with the hierarchy flattened to a single level.
+     * </p>
+     */
+    @Override
+    String get(String key, Set<String> options, List<String> visiting, ConfigMetrics m, boolean counted) {
+        Value value = find(key, m, counted);
+        return value == null ? null : value.raw;
+    }
+
+    @Override
+    Value find(String key) {
+        return find(key, getMetrics(), false);
+    }
+
+    /**
+     * Returns the actualized value of the given key, or null if this config does not have the given key,
+     * recording the hit or miss in the given metrics if not null, unless the caller already counted it.
+     */
+    private Value find(String key, ConfigMetrics m, boolean counted) {
+        int index = indexOf(key);
+        if (m != null && !counted) {
+            if (index < 0) {
+                m.miss();
+            } else {
+                m.hit(key, 0);
+            }
+        }
+        return index < 0 ? null : values[index];
+    }
+
+    /**
+     * Returns the raw value of the given key,
+     * so children of this config actualize lookups just as they would with a live parent.
+     */
+    @Override
+    Value local(String key) {
+        int index = indexOf(key);
+        return index < 0 ? null : raws[index];
+    }
+
+    @Override
+    Iterator<Entry<String, Value>> locals(String prefix) {
+        final int start = start(prefix);
+        return new Iterator<Entry<String, Value>>() {
+            private int index = start;
+
+            @Override
+            public boolean hasNext() {
+                return index < keys.length && keys[index].startsWith(prefix);
+            }
+
+            @Override
+            public Entry<String, Value> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Entry<String, Value> e = new SimpleImmutableEntry<>(keys[index], raws[index]);
+                index++;
+                return e;
+            }
+        };
+    }
+
+    @Override
+    public Map<String, String> getAll() {
+        Map<String, String> entries = new HashMap<>();
+        for (int i = 0; i < keys.length; i++) {
+            entries.put(keys[i], raws[i].raw);
+        }
+        return entries;
+    }
+
+    @Override
+    public Map<String, String> getAll(String prefix) {
+        Map<String, String> entries = new HashMap<>();
+        for (int i = start(prefix); i < keys.length && keys[i].startsWith(prefix); i++) {
+            entries.put(keys[i], raws[i].raw);
+        }
+        return entries;
+    }
+
+    /**
+     * Returns the index of the first key which is not less than the given prefix.
+     */
+    private int start(String prefix) {
+        int index = Arrays.binarySearch(keys, prefix);
+        return index < 0 ? -index - 1 : index;
+    }
+
+    @Override
+    long digest() {
+        return digest;
+    }
+
+    @Override
+    public Config put(String key, String value) {
+        throw new UnsupportedOperationException("Frozen configs cannot be changed");
+    }
+
+    @Override
+    void apply(Map<String, String> puts, Collection<String> removes) {
+        throw new UnsupportedOperationException("Frozen configs cannot be changed");
+    }
+
+    @Override
+    public Config freeze() {
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getName() + "@" + Integer.toHexString(hashCode()) + "\nconfigs: " + getAll() + "\n";
+    }
+}
@@ -0,0 +1,375 @@
+/*
+ * Copyright 2018 Stuart Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * State shared by every config in a hierarchy.
+ *
+ * <p>
+ * Changes are serialized by a lock, and each one advances the version twice; once as it begins, leaving the version odd,
+ * and once as it ends. Readers never take the lock, instead they read optimistically and retry if the version moved.
+ * </p>
+ *
+ * <p>
+ * Each change remembers the effective values of the keys it touches, as seen by subscribed configs,
+ * so once it ends only the values which actually changed are passed to the subscriptions.
+ * Recorders, such as journals, see the keys each change touches in the configs they record.
+ * </p>
+ *
+ * <p>
+ * A Bloom filter holds the keys of every config in the hierarchy which filters its own keys,
+ * so a key missing from all of them is ruled out with a single check rather than one per level.
+ * </p>
+ */
+final class Hierarchy {
+
+    private static final int ATTEMPTS = 8;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    // Only written while holding the lock
+    private volatile long version = 0;
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+    // The previous effective value of each key touched by the current change, only accessed while holding the lock
+    private final Map<Subscription, Map<String, String>> touched = new HashMap<>();
+    private final List<Recorder> recorders = new CopyOnWriteArrayList<>();
+    // Rules out keys missing from every registered config, null until the first is registered
+    private volatile BloomFilter filter;
+    // The configs whose keys the filter holds, guarded by itself
+    private final Set<Config> filtered = Collections.newSetFromMap(new WeakHashMap<>());
+
+    /**
+     * Begins a change, which may be nested within another change by the same thread.
+     */
+    void begin() {
+        lock.lock();
+        if (lock.getHoldCount() == 1) {
+            version++;
+        }
+    }
+
+    /**
+     * Ends a change, publishing it to readers once the outermost change ends.
+     */
+    void end() {
+        if (lock.getHoldCount() > 1) {
+            lock.unlock();
+            return;
+        }
+        List<Subscription> scheduled = null;
+        Map<Recorder, Long> appended = null;
+        try {
+            if (!touched.isEmpty()) {
+                // Added while holding the lock, so a later change can never be overwritten by an earlier one
+                for (Entry<Subscription, Map<String, String>> e : changes().entrySet()) {
+                    if (e.getKey().add(e.getValue())) {
+                        if (scheduled == null) {
+                            scheduled = new ArrayList<>();
+                        }
+                        scheduled.add(e.getKey());
+                    }
+                }
+            }
+            for (Recorder recorder : recorders) {
+                long position = recorder.append();
+                if (position >= 0) {
+                    if (appended == null) {
+                        appended = new HashMap<>();
+                    }
+                    appended.put(recorder, position);
+                }
+            }
+        } finally {
+            version++;
+            lock.unlock();
+        }
+        if (scheduled != null) {
+            for (Subscription s : scheduled) {
+                s.schedule();
+            }
+        }
+        if (appended != null) {
+            // Wait for the change to be synced, outside the lock so that other changes are synced with it
+            for (Entry<Recorder, Long> e : appended.entrySet()) {
+                e.getKey().sync(e.getValue());
+            }
+        }
+    }
+
+    /**
+     * Returns true iff any config in this hierarchy has subscriptions or a recorder, and so changed keys must be touched.
+     */
+    boolean isWatched() {
+        return !subscriptions.isEmpty() || !recorders.isEmpty();
+    }
+
+    /**
+     * Holds back changes by other threads, without disturbing readers, until released.
+     */
+    void hold() {
+        lock.lock();
+    }
+
+    /**
+     * Releases changes held back by hold.
+     */
+    void release() {
+        lock.unlock();
+    }
+
+    /**
+     * Called by the given config before the given key is changed,
+     * to remember the effective value of the key as seen by each subscribed config.
+     */
+    void touch(Config config, String key) {
+        for (Recorder recorder : recorders) {
+            if (recorder.getConfig() == config) {
+                recorder.touch(key);
+            }
+        }
+        if (subscriptions.isEmpty()) {
+            return;
+        }
+        for (Subscription s : subscriptions) {
+            if (key.startsWith(s.prefix) && s.config.inherits(config)) {
+                Map<String, String> previous = touched.get(s);
+                if (previous == null) {
+                    previous = new HashMap<>();
+                    touched.put(s, previous);
+                }
+                if (!previous.containsKey(key)) {
+                    previous.put(key, s.config.effective(key));
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the touched keys whose effective values were changed by the current change.
+     */
+    private Map<Subscription, Map<String, String>> changes() {
+        Map<Subscription, Map<String, String>> changes = new HashMap<>();
+        for (Entry<Subscription, Map<String, String>> t : touched.entrySet()) {
+            Subscription s = t.getKey();
+            Map<String, String> changed = new HashMap<>();
+            for (Entry<String, String> e : t.getValue().entrySet()) {
+                String value = s.config.effective(e.getKey());
+                if (value == null ? e.getValue() != null : !value.equals(e.getValue())) {
+                    changed.put(e.getKey(), value);
+                }
+            }
+            if (!changed.isEmpty()) {
+                changes.put(s, changed);
+            }
+        }
+        touched.clear();
+        return changes;
+    }
+
+    /**
+     * Adds the given recorder, which must be called while holding back changes.
+     */
+    void record(Recorder recorder) {
+        recorders.add(recorder);
+    }
+
+    /**
+     * Removes the given recorder, which must be called while holding back changes.
+     */
+    void unrecord(Recorder recorder) {
+        recorders.remove(recorder);
+    }
+
+    /**
+     * Adds the given subscription.
+     */
+    void subscribe(Subscription subscription) {
+        subscriptions.add(subscription);
+    }
+
+    /**
+     * Removes all subscriptions of the given listener to the given config.
+     */
+    void unsubscribe(Config config, ConfigListener listener) {
+        for (Subscription s : subscriptions) {
+            if (s.config == config && s.listener == listener) {
+                subscriptions.remove(s);
+            }
+        }
+    }
+
+    /**
+     * Registers the given empty config, whose keys are then added to the filter as they are put.
+     */
+    void register(Config config) {
+        synchronized (filtered) {
+            filtered.add(config);
+            if (filter == null) {
+                filter = new BloomFilter(Config.FILTER_CAPACITY);
+            }
+        }
+    }
+
+    /**
+     * Adds the given key to the filter, called while holding the lock before the key is put into a registered config,
+     * rebuilding the filter from the keys of every registered config once it is full, which also drops any removed keys.
+     */
+    void filter(String key) {
+        BloomFilter f = filter;
+        if (f.count() >= f.capacity()) {
+            List<Config> configs;
+            synchronized (filtered) {
+                configs = new ArrayList<>(filtered);
+            }
+            List<String> keys = new ArrayList<>();
+            for (Config c : configs) {
+                for (Iterator<Entry<String, Value>> i = c.locals(""); i.hasNext();) {
+                    keys.add(i.next().getKey());
+                }
+            }
+            f = new BloomFilter(Math.max(Config.FILTER_CAPACITY, (keys.size() + 1) * 2));
+            for (String k : keys) {
+                f.add(k);
+            }
+            f.add(key);
+            // Published once complete, so readers never see a partial filter
+            filter = f;
+        } else {
+            f.add(key);
+        }
+    }
+
+    /**
+     * Returns false if no registered config definitely has the given key, or true if one might.
+     */
+    boolean mayHave(String key) {
+        BloomFilter f = filter;
+        return f == null || f.mightContain(key);
+    }
+
+    /**
+     * Returns the current version, to be passed to {@link #changed(long)}.
+     */
+    long version() {
+        return version;
+    }
+
+    /**
+     * Returns whether a change may have happened since the given version was read.
+     */
+    boolean changed(long since) {
+        return !lock.isHeldByCurrentThread() && ((since & 1) != 0 || version != since);
+    }
+
+    /**
+     * Returns the result of the given reader, which reads multiple entries from the hierarchy,
+     * as of a single version so that it sees either all or none of each change.
+     *
+     * <p>
+     * The reader may be run several times, and so must not change the hierarchy itself.
+     * </p>
+     */
+    <T> T read(Supplier<T> reader) {
+        if (lock.isHeldByCurrentThread()) {
+            return reader.get();
+        }
+        for (int a = 0; a < ATTEMPTS; a++) {
+            long v = version;
+            if ((v & 1) == 0) {
+                T result = reader.get();
+                if (version == v) {
+                    return result;
+                }
+            }
+            Thread.yield();
+        }
+        // Changing too often to read optimistically, so wait for a quiet moment
+        lock.lock();
+        try {
+            return reader.get();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the result of the given reader, which reads from both of the given hierarchies,
+     * as of a single version of each.
+     *
+     * <p>
+     * Once reading optimistically fails, the locks are taken in a fixed order,
+     * so readers of the same two hierarchies in either order never deadlock.
+     * </p>
+     */
+    static <T> T read(Hierarchy a, Hierarchy b, Supplier<T> reader) {
+        if (a == b || b.lock.isHeldByCurrentThread()) {
+            return a.read(reader);
+        }
+        if (a.lock.isHeldByCurrentThread()) {
+            return b.read(reader);
+        }
+        for (int attempt = 0; attempt < ATTEMPTS; attempt++) {
+            long va = a.version;
+            long vb = b.version;
+            if (((va | vb) & 1) == 0) {
+                T result = reader.get();
+                if (a.version == va && b.version == vb) {
+                    return result;
+                }
+            }
+            Thread.yield();
+        }
+        int ha = System.identityHashCode(a);
+        int hb = System.identityHashCode(b);
+        if (ha == hb) {
+            // Rare enough to order them by a single shared lock instead
+            synchronized (Hierarchy.class) {
+                return locked(a, b, reader);
+            }
+        }
+        return ha < hb ? locked(a, b, reader) : locked(b, a, reader);
+    }
+
+    /**
+     * Returns the result of the given reader while holding the locks of the given hierarchies, taken in the given order.
+     */
+    private static <T> T locked(Hierarchy first, Hierarchy second, Supplier<T> reader) {
+        first.lock.lock();
+        try {
+            second.lock.lock();
+            try {
+                return reader.get();
+            } finally {
+                second.lock.unlock();
+            }
+        } finally {
+            first.lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,323 @@
+/*
+ * Copyright 2018 Stuart Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package config;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A read-only config backed by a memory-mapped text file of &lt;key&gt;=&lt;value&gt; lines,
+ * which decodes each value only when it is first read.
+ *
+ * <p>
+ * Opening a file scans it once to index the hash of each key to the offset of its line, keeping the last line
+ * of each key just as readAllLines does; no keys or values are decoded.
+ * The index takes a few dozen bytes per key, and only the values which are read are decoded and kept,
+ * so a large file of which only a few keys are used starts quickly and takes little memory.
+ * The file must not be changed while it is open, and must be smaller than 2GB.
+ * </p>
+ */
+public class LazyConfig extends Config {
+
+    private static final int CHUNK = 1 << 16;
+
+    /**
+     * Opens the given text config file.
+     */
+    public static LazyConfig open(File file) throws IOException {
+        return open(file, null);
+    }
+
+    /**
+     * Opens the given text config file, with the given parent.
+     */
+    public static LazyConfig open(File file, Config parent) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Too large for a lazy config: " + file);
+            }
+            return new LazyConfig(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), parent);
+        }
+    }
+
+    private final ByteBuffer buffer;
+    // An open-addressing table of the hash of each key, and the offset of its line plus one and the length of its key,
+    // packed into a long with the offset in the high half, so zero marks an empty slot
+    private final int[] hashes;
+    private final long[] lines;
+    private final int count;
+    // Entries which have been decoded
+    private final Map<String, Value> decoded = new ConcurrentHashMap<>();
+    // Computed on first use, the flag is written after the digest so reading it first publishes the digest
+    private long digest;
+    private volatile boolean digested;
+
+    private LazyConfig(ByteBuffer buffer, Config parent) {
+        super(parent, null, null, false);
+        this.buffer = buffer;
+        Index index = new Index(buffer);
+        hashes = index.hashes;
+        lines = index.lines;
+        count = index.count;
+    }
+
+    /**
+     * Builds the table of a config by scanning the lines in its file once, hashing each key as it goes.
+     */
+    private static final class Index {
+
+        final ByteBuffer buffer;
+        int[] hashes = new int[16];
+        long[] lines = new long[16];
+        int count;
+
+        Index(ByteBuffer buffer) {
+            this.buffer = buffer;
+            ByteBuffer b = buffer.duplicate();
+            byte[] chunk = new byte[CHUNK];
+            int start = 0;
+            // The index of the '=' in the current line, or -1 until it is found
+            int index = -1;
+            int hash = 0x811C9DC5;
+            for (int position = 0; position < buffer.limit();) {
+                int length = Math.min(chunk.length, buffer.limit() - position);
+                b.get(chunk, 0, length);
+                for (int i = 0; i < length; i++, position++) {
+                    byte c = chunk[i];
+                    if (c == '\n') {
+                        line(start, index, position, hash);
+                        start = position + 1;
+                        index = -1;
+                        hash = 0x811C9DC5;
+                    } else if (index < 0) {
+                        if (c == '=') {
+                            index = position;
+                        } else {
+                            hash ^= c & 0xFF;
+                            hash *= 0x01000193;
+                        }
+                    }
+                }
+            }
+            line(start, index, buffer.limit(), hash);
+        }
+
+        /**
+         * Indexes the line between start and end, with the '=' at index or -1 if it has none, and its key hash.
+         */
+        private void line(int start, int index, int end, int hash) {
+            if (end > start && buffer.get(end - 1) == '\r') {
+                end--;
+                if (index < 0) {
+                    // The '\r' was hashed as part of the key
+                    byte[] key = new byte[end - start];
+                    for (int i = 0; i < key.length; i++) {
+                        key[i] = buffer.get(start + i);
+                    }
+                    hash = BinaryConfig.hash(key);
+                }
+            }
+            int length = (index < 0 ? end : index) - start;
+            if (length == 0) {
+                return;
+            }
+            if (count * 2 >= hashes.length) {
+                grow();
+            }
+            int mask = hashes.length - 1;
+            for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+                long line = lines[slot];
+                if (line == 0) {
+                    hashes[slot] = hash;
+                    lines[slot] = pack(start, length);
+                    count++;
+                    return;
+                }
+                if (hashes[slot] == hash && length == (int) line && equals(start, (int) (line >>> 32) - 1, length)) {
+                    // A later line of the same key replaces it
+                    lines[slot] = pack(start, length);
+                    return;
+                }
+            }
+        }
+
+        private static long pack(int start, int length) {
+            return ((long) (start + 1) << 32) | length;
+        }
+
+        private void grow() {
+            int[] previousHashes = hashes;
+            long[] previousLines = lines;
+            hashes = new int[previousHashes.length * 2];
+            lines = new long[previousLines.length * 2];
+            int mask = hashes.length - 1;
+            for (int s = 0; s < previousLines.length; s++) {
+                if (previousLines[s] != 0) {
+                    int slot = previousHashes[s] & mask;
+                    while (lines[slot] != 0) {
+                        slot = (slot + 1) & mask;
+                    }
+                    hashes[slot] = previousHashes[s];
+                    lines[slot] = previousLines[s];
+                }
+            }
+        }
+
+        /**
+         * Returns true iff the given number of bytes at the given offsets are equal.
+         */
+        private boolean equals(int a, int b, int length) {
+            for (int i = 0; i < length; i++) {
+                if (buffer.get(a + i) != buffer.get(b + i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Returns the number of entries in this config.
+     */
+    public int size() {
+        return count;
+    }
+
+    @Override
+    Value local(String key) {
+        Value value = decoded.get(key);
+        if (value == null) {
+            long line = find(key.getBytes(StandardCharsets.UTF_8));
+            if (line != 0) {
+                value = new Value(value(line));
+                decoded.put(key, value);
+            }
+        }
+        return value;
+    }
+
+    @Override
+    Iterator<Entry<String, Value>> locals(String prefix) {
+        return new PrefixIterator<Value>() {
+            private int slot = -1;
+
+            @Override
+            Entry<String, Value> advance() {
+                while (++slot < lines.length) {
+                    long line = lines[slot];
+                    if (line != 0) {
+                        String key = string((int) (line >>> 32) - 1, (int) line);
+                        if (key.startsWith(prefix)) {
+                            Value value = decoded.get(key);
+                            return new SimpleImmutableEntry<>(key, value == null ? new Value(value(line)) : value);
+                        }
+                    }
+                }
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Returns the packed line of the given key, or zero if this config does not have the given key.
+     */
+    private long find(byte[] key) {
+        int hash = BinaryConfig.hash(key);
+        int mask = hashes.length - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            long line = lines[slot];
+            if (line == 0) {
+                return 0;
+            }
+            if (hashes[slot] == hash && (int) line == key.length && matches((int) (line >>> 32) - 1, key)) {
+                return line;
+            }
+        }
+    }
+
+    private boolean matches(int offset, byte[] key) {
+        for (int i = 0; i < key.length; i++) {
+            if (buffer.get(offset + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decodes the value of the given packed line, which is "true" if the line has no '='.
+     */
+    private String value(long line) {
+        int index = (int) (line >>> 32) - 1 + (int) line;
+        if (index >= buffer.limit() || buffer.get(index) != '=') {
+            return "true";
+        }
+        int end = index + 1;
+        while (end < buffer.limit() && buffer.get(end) != '\n') {
+            end++;
+        }
+        if (end > index + 1 && buffer.get(end - 1) == '\r') {
+            end--;
+        }
+        return string(index + 1, end - index - 1);
+    }
+
+    /**
+     * Decodes the given number of bytes at the given offset.
+     */
+    private String string(int offset, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer b = buffer.duplicate();
+        b.position(offset);
+        b.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    long digest() {
+        if (!digested) {
+            digest = scan();
+            digested = true;
+        }
+        return digest;
+    }
+
+    @Override
+    public Config put(String key, String value) {
+        throw new UnsupportedOperationException("Lazy configs cannot be changed");
+    }
+
+    @Override
+    void apply(Map<String, String> puts, Collection<String> removes) {
+        throw new UnsupportedOperationException("Lazy configs cannot be changed");
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getName() + "@" + Integer.toHexString(hashCode()) + "\nentries: " + count + "\n";
+    }
+}
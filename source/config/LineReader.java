@@ -0,0 +1,188 @@
+/*
+ * Copyright 2018 Stuart Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package config;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Reads lines of &lt;key&gt;=&lt;value&gt; in large chunks,
+ * splitting lines and keys directly on the bytes and decoding them as UTF-8.
+ *
+ * <p>
+ * Lines may end with either "\n" or "\r\n", and empty lines are skipped.
+ * </p>
+ */
+final class LineReader {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int READERS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    // Files are read on daemon threads of their own, which end when idle,
+    // so blocking reads never tie up the common fork-join pool that listeners and async gets run on
+    private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(READERS, READERS, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+        Thread thread = new Thread(r, "config-reader");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Receives each line as the undecoded bytes of its key and value.
+     */
+    interface Sink {
+
+        /**
+         * Receives the line between start and end in the given bytes, with the '=' at index,
+         * or index equal to end if the line has no '=' and so its value is "true".
+         * The bytes are only valid until the sink returns.
+         */
+        void line(byte[] bytes, int start, int index, int end);
+    }
+
+    private LineReader() {
+    }
+
+    /**
+     * Submits the given read to run on a reader thread.
+     */
+    static <T> Future<T> submit(Callable<T> read) {
+        return EXECUTOR.submit(read);
+    }
+
+    /**
+     * Returns the key/value pairs in the given file in the order they were read, skipping empty keys,
+     * or an empty map if the file cannot be read.
+     */
+    static Map<String, String> read(File file) throws IOException {
+        Map<String, String> entries = new LinkedHashMap<>();
+        if (file.exists() && file.isFile() && file.canRead()) {
+            read(file, (key, value) -> {
+                if (!key.isEmpty()) {
+                    entries.put(key, value);
+                }
+            });
+        }
+        return entries;
+    }
+
+    /**
+     * Reads all lines from the given file into the given sink.
+     */
+    static void read(File file, BiConsumer<String, String> sink) throws IOException {
+        read(file, decoder(sink));
+    }
+
+    /**
+     * Reads all lines from the given file into the given sink, without decoding them.
+     */
+    static void read(File file, Sink sink) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            // Small files fit in a single read, with a byte to spare to see the end
+            read(channel, (int) Math.min(BUFFER_SIZE, channel.size() + 1), sink);
+        }
+    }
+
+    /**
+     * Reads all lines from the given channel into the given sink,
+     * starting with a buffer of the given capacity, which grows to fit the longest line.
+     */
+    static void read(ReadableByteChannel channel, int capacity, BiConsumer<String, String> sink) throws IOException {
+        read(channel, capacity, decoder(sink));
+    }
+
+    /**
+     * Reads all lines from the given channel into the given sink, without decoding them,
+     * starting with a buffer of the given capacity, which grows to fit the longest line.
+     */
+    static void read(ReadableByteChannel channel, int capacity, Sink sink) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(Math.max(capacity, 16));
+        // Bytes before start have been parsed, bytes before scan have been searched for a newline
+        int start = 0;
+        int scan = 0;
+        while (channel.read(buffer) >= 0) {
+            byte[] bytes = buffer.array();
+            int limit = buffer.position();
+            for (; scan < limit; scan++) {
+                if (bytes[scan] == '\n') {
+                    parse(bytes, start, scan, sink);
+                    start = scan + 1;
+                }
+            }
+            if (start > 0) {
+                // Move the partial line to the front
+                System.arraycopy(bytes, start, bytes, 0, limit - start);
+                buffer.position(limit - start);
+                scan -= start;
+                start = 0;
+            } else if (limit == bytes.length) {
+                // The line is longer than the buffer
+                ByteBuffer larger = ByteBuffer.allocate(bytes.length * 2);
+                larger.put(bytes, 0, limit);
+                buffer = larger;
+            }
+        }
+        parse(buffer.array(), start, buffer.position(), sink);
+    }
+
+    /**
+     * Splits the line between the given indices at its first '=', and passes it to the given sink.
+     */
+    private static void parse(byte[] bytes, int start, int end, Sink sink) {
+        if (end > start && bytes[end - 1] == '\r') {
+            end--;
+        }
+        if (end == start) {
+            return;
+        }
+        int index = start;
+        while (index < end && bytes[index] != '=') {
+            index++;
+        }
+        sink.line(bytes, start, index, end);
+    }
+
+    /**
+     * Returns a sink which decodes each line as UTF-8 into a key/value pair, and passes it to the given sink.
+     */
+    private static Sink decoder(BiConsumer<String, String> sink) {
+        return (bytes, start, index, end) -> {
+            String key = new String(bytes, start, index - start, StandardCharsets.UTF_8);
+            if (index == end) {
+                sink.accept(key, "true");
+            } else {
+                sink.accept(key, new String(bytes, index + 1, end - index - 1, StandardCharsets.UTF_8));
+            }
+        };
+    }
+}
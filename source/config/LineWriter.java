@@ -0,0 +1,89 @@
+/*
+ * Copyright 2018 Stuart Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package config;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes lines of &lt;key&gt;=&lt;value&gt;, encoding them as UTF-8 into a reusable buffer,
+ * and writing the buffer to the underlying stream in large chunks.
+ */
+final class LineWriter {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final OutputStream output;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position = 0;
+
+    LineWriter(OutputStream output) {
+        this.output = output;
+    }
+
+    /**
+     * Writes the given key/value pair as a line.
+     */
+    void write(String key, String value) throws IOException {
+        encode(key);
+        put((byte) '=');
+        encode(value);
+        put((byte) '\n');
+    }
+
+    /**
+     * Writes any buffered bytes to the underlying stream.
+     */
+    void flush() throws IOException {
+        if (position > 0) {
+            output.write(buffer, 0, position);
+            position = 0;
+        }
+    }
+
+    private void encode(String s) throws IOException {
+        for (int i = 0, length = s.length(); i < length; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                put((byte) c);
+            } else if (c < 0x800) {
+                put((byte) (0xC0 | (c >> 6)));
+                put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int p = Character.toCodePoint(c, s.charAt(++i));
+                put((byte) (0xF0 | (p >> 18)));
+                put((byte) (0x80 | ((p >> 12) & 0x3F)));
+                put((byte) (0x80 | ((p >> 6) & 0x3F)));
+                put((byte) (0x80 | (p & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                // Unpaired surrogates are replaced, just as String.getBytes does
+                put((byte) '?');
+            } else {
+                put((byte) (0xE0 | (c >> 12)));
+                put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    private void put(byte b) throws IOException {
+        if (position == buffer.length) {
+            flush();
+        }
+        buffer[position++] = b;
+    }
+}
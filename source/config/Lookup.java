@@ -0,0 +1,75 @@
+/*
+ * Copyright 2018 Stuart Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package config;
+
+/**
+ * A lookup query compiled into alternating literal and key segments.
+ *
+ * <p>
+ * A query of the form "?a&lt;b&gt;c&lt;d&gt;e" compiles to the literals ["a", "c", "e"] and the keys ["b", "d"],
+ * so it can be actualized in a single pass without rescanning the query.
+ * </p>
+ */
+final class Lookup {
+
+    /**
+     * Compiles the given query, which must start with a '?'.
+     */
+    static Lookup compile(String query) {
+        int count = 0;
+        int index = 1;
+        int start;
+        int end;
+        while ((start = query.indexOf('<', index)) >= 0 && (end = query.indexOf('>', index)) > start) {
+            count++;
+            index = end + 1;
+        }
+        String[] literals = new String[count + 1];
+        String[] keys = new String[count];
+        int length = 0;
+        boolean angled = false;
+        index = 1;
+        for (int k = 0; k < count; k++) {
+            start = query.indexOf('<', index);
+            end = query.indexOf('>', index);
+            literals[k] = query.substring(index, start);
+            keys[k] = query.substring(start + 1, end);
+            length += start - index;
+            angled |= literals[k].indexOf('<') >= 0;
+            index = end + 1;
+        }
+        literals[count] = query.substring(index);
+        length += query.length() - index;
+        angled |= literals[count].indexOf('<') >= 0;
+        return new Lookup(literals, keys, length, angled);
+    }
+
+    // Literals surround the keys, the first excludes the leading '?'
+    final String[] literals;
+    final String[] keys;
+    // Combined length of the literals
+    final int length;
+    // True iff a literal contains a '<', so the query can never be fully actualized
+    final boolean angled;
+
+    private Lookup(String[] literals, String[] keys, int length, boolean angled) {
+        this.literals = literals;
+        this.keys = keys;
+        this.length = length;
+        this.angled = angled;
+    }
+}
@@ -0,0 +1,644 @@
+/*
+ * Copyright 2018 Stuart Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package config;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+/**
+ * A config which keeps its entries off the heap, in a memory-mapped file which it reads and changes in place.
+ *
+ * <p>
+ * Opening a file only reads its header; the pages holding the keys which are gotten are read on demand,
+ * so a config of any size opens instantly. Changes append a record to the file and point the hash index at it,
+ * and are written back to the file by the operating system, or when the config is closed.
+ * Once the records replaced or removed by changes outweigh the rest, or the index fills, the file is rewritten
+ * without them, into a temporary file which then replaces it.
+ * </p>
+ *
+ * <pre>
+ * {@code
+ * The format is a header of; magic, version, slot count, used slot count, entry count (ints),
+ * a padding int, end of the records, and bytes of replaced records (longs),
+ * followed by:
+ *   slots:   (slot count) longs, an open-addressing table of record offsets, zero marks empty and -1 removed
+ *   records: key length and value length (ints), followed by the UTF-8 bytes of the key and value
+ * }
+ * </pre>
+ */
+public class MappedConfig extends Config implements Closeable {
+
+    // "CFGM"
+    static final int MAGIC = 0x4346474D;
+    static final int VERSION = 1;
+    private static final int HEADER = 40;
+    private static final int SLOTS = 1 << 10;
+    private static final long EMPTY = 0;
+    private static final long REMOVED = -1;
+    // The file is mapped in segments, as a single mapping is limited to 2GB
+    private static final long SEGMENT = 1L << 30;
+    // Files grow by at least this much, and are only compacted once they hold at least this much garbage
+    private static final long GROWTH = 1 << 16;
+    private static final long GARBAGE = 1 << 20;
+
+    /**
+     * Opens the given mapped config file, creating it if it does not exist.
+     */
+    public static MappedConfig open(File file) throws IOException {
+        return open(file, null);
+    }
+
+    /**
+     * Opens the given mapped config file with the given parent, creating it if it does not exist.
+     */
+    public static MappedConfig open(File file, Config parent) throws IOException {
+        return new MappedConfig(file, parent, SEGMENT);
+    }
+
+    private final File file;
+    private final long segment;
+    // Read without the hierarchy lock, retrying if a change moved them
+    private volatile Mapping mapping;
+    private volatile int slots;
+    // Only accessed while holding the hierarchy lock
+    private FileChannel channel;
+    private int used;
+    private int live;
+    private long end;
+    private long garbage;
+
+    MappedConfig(File file, Config parent, long segment) throws IOException {
+        super(parent, null, null, false);
+        this.file = file;
+        this.segment = segment;
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        try {
+            if (channel.size() == 0) {
+                slots = SLOTS;
+                end = HEADER + SLOTS * 8L;
+                mapping = grow(channel, null, end + GROWTH, segment);
+                mapping.putInt(0, MAGIC);
+                mapping.putInt(4, VERSION);
+                header();
+            } else {
+                mapping = new Mapping(channel, channel.size(), segment, null);
+                if (mapping.length < HEADER || mapping.getInt(0) != MAGIC || mapping.getInt(4) != VERSION) {
+                    throw new IOException("Not a mapped config: " + file);
+                }
+                slots = mapping.getInt(8);
+                used = mapping.getInt(12);
+                live = mapping.getInt(16);
+                end = mapping.getLong(24);
+                garbage = mapping.getLong(32);
+                if (Integer.bitCount(slots) != 1 || end < HEADER + slots * 8L || end > mapping.length) {
+                    throw new IOException("Corrupt mapped config: " + file);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the number of entries in this config alone.
+     */
+    public int size() {
+        return hierarchy.read(() -> live);
+    }
+
+    @Override
+    Value local(String key) {
+        final byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        return hierarchy.read(() -> {
+            long v = hierarchy.version();
+            try {
+                Mapping m = mapping;
+                int slot = find(m, slots, bytes);
+                if (slot < 0) {
+                    return null;
+                }
+                long record = m.getLong(HEADER + slot * 8L);
+                return new Value(m.getString(record + 8 + bytes.length, m.getInt(record + 4)));
+            } catch (RuntimeException e) {
+                if (!hierarchy.changed(v)) {
+                    throw e;
+                }
+                // Torn by a concurrent change, so the read will be retried
+                return null;
+            }
+        });
+    }
+
+    @Override
+    Iterator<Entry<String, Value>> locals(String prefix) {
+        final byte[] bytes = prefix.getBytes(StandardCharsets.UTF_8);
+        final long v = hierarchy.version();
+        final Mapping m = mapping;
+        final int count = slots;
+        return new PrefixIterator<Value>() {
+            private int slot = -1;
+            // The keys returned so far, so that a scan restarted after a torn read skips them
+            private final Set<String> returned = new HashSet<>();
+            // The rest of the entries, once the scan has been restarted
+            private Iterator<Entry<String, Value>> rest;
+
+            @Override
+            Entry<String, Value> advance() {
+                if (rest == null) {
+                    try {
+                        while (++slot < count) {
+                            Entry<String, Value> e = entry(m, m.getLong(HEADER + slot * 8L), bytes);
+                            if (e != null) {
+                                returned.add(e.getKey());
+                                return e;
+                            }
+                        }
+                        return null;
+                    } catch (RuntimeException e) {
+                        if (!hierarchy.changed(v)) {
+                            throw e;
+                        }
+                        // Torn by a concurrent change, so the rest is scanned again as of a single version
+                        rest = hierarchy.read(() -> rescan(bytes, returned)).iterator();
+                    }
+                }
+                return rest.hasNext() ? rest.next() : null;
+            }
+        };
+    }
+
+    /**
+     * Returns the entries whose keys start with the given prefix, other than the given keys,
+     * or null if torn by a concurrent change, so that the read is retried.
+     */
+    private List<Entry<String, Value>> rescan(byte[] prefix, Set<String> skipped) {
+        long v = hierarchy.version();
+        try {
+            Mapping m = mapping;
+            List<Entry<String, Value>> entries = new ArrayList<>();
+            for (int slot = 0; slot < slots; slot++) {
+                Entry<String, Value> e = entry(m, m.getLong(HEADER + slot * 8L), prefix);
+                if (e != null && !skipped.contains(e.getKey())) {
+                    entries.add(e);
+                }
+            }
+            return entries;
+        } catch (RuntimeException e) {
+            if (!hierarchy.changed(v)) {
+                throw e;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Returns the entry of the given record if its key starts with the given prefix,
+     * or null if it does not, or the record marks an empty or removed slot.
+     */
+    private static Entry<String, Value> entry(Mapping m, long record, byte[] prefix) {
+        if (record == EMPTY || record == REMOVED || !m.startsWith(record + 8, m.getInt(record), prefix)) {
+            return null;
+        }
+        int length = m.getInt(record);
+        return new SimpleImmutableEntry<>(m.getString(record + 8, length), new Value(m.getString(record + 8 + length, m.getInt(record + 4))));
+    }
+
+    @Override
+    long digest() {
+        return scan();
+    }
+
+    @Override
+    public Config put(String key, String value) {
+        if (!key.isEmpty()) {
+            byte[] k = key.getBytes(StandardCharsets.UTF_8);
+            byte[] v = value.getBytes(StandardCharsets.UTF_8);
+            hierarchy.begin();
+            try {
+                advance();
+                open();
+                hierarchy.touch(this, key);
+                insert(k, v);
+                compact(false);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                advance();
+                hierarchy.end();
+            }
+        }
+        return this;
+    }
+
+    @Override
+    void apply(Map<String, String> puts, Collection<String> removes) {
+        hierarchy.begin();
+        try {
+            advance();
+            open();
+            for (String key : removes) {
+                hierarchy.touch(this, key);
+                remove(key.getBytes(StandardCharsets.UTF_8));
+            }
+            for (Entry<String, String> e : puts.entrySet()) {
+                if (!e.getKey().isEmpty()) {
+                    hierarchy.touch(this, e.getKey());
+                    insert(e.getKey().getBytes(StandardCharsets.UTF_8), e.getValue().getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            compact(false);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            advance();
+            hierarchy.end();
+        }
+    }
+
+    /**
+     * Rewrites the file without any replaced or removed records.
+     */
+    public void compact() throws IOException {
+        hierarchy.begin();
+        try {
+            open();
+            compact(true);
+        } finally {
+            hierarchy.end();
+        }
+    }
+
+    /**
+     * Writes all changes to the file, and closes it.
+     * The entries may still be gotten, but not changed.
+     */
+    @Override
+    public void close() throws IOException {
+        hierarchy.begin();
+        try {
+            if (channel.isOpen()) {
+                mapping.force();
+                channel.close();
+            }
+        } finally {
+            hierarchy.end();
+        }
+    }
+
+    /**
+     * Throws an IllegalStateException if the file has been closed.
+     */
+    private void open() {
+        if (!channel.isOpen()) {
+            throw new IllegalStateException("Mapped config is closed: " + file);
+        }
+    }
+
+    /**
+     * Returns the slot of the given key, or -1 if it has none.
+     */
+    private static int find(Mapping m, int slots, byte[] key) {
+        int mask = slots - 1;
+        for (int i = 0, slot = BinaryConfig.hash(key) & mask; i < slots; i++, slot = (slot + 1) & mask) {
+            long record = m.getLong(HEADER + slot * 8L);
+            if (record == EMPTY) {
+                return -1;
+            }
+            if (record != REMOVED && m.getInt(record) == key.length && m.startsWith(record + 8, key.length, key)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Appends a record of the given key and value, and points its slot at it.
+     */
+    private void insert(byte[] key, byte[] value) throws IOException {
+        if ((used + 1) * 2L > slots) {
+            rewrite(slots * 2);
+        }
+        Mapping m = mapping;
+        int mask = slots - 1;
+        int removed = -1;
+        int slot = BinaryConfig.hash(key) & mask;
+        long previous;
+        for (;; slot = (slot + 1) & mask) {
+            previous = m.getLong(HEADER + slot * 8L);
+            if (previous == EMPTY) {
+                break;
+            }
+            if (previous == REMOVED) {
+                if (removed < 0) {
+                    removed = slot;
+                }
+            } else if (m.getInt(previous) == key.length && m.startsWith(previous + 8, key.length, key)) {
+                break;
+            }
+        }
+        long record = append(key, value);
+        m = mapping;
+        if (previous != EMPTY) {
+            garbage += 8L + m.getInt(previous) + m.getInt(previous + 4);
+        } else {
+            if (removed >= 0) {
+                slot = removed;
+            } else {
+                used++;
+            }
+            live++;
+        }
+        m.putLong(HEADER + slot * 8L, record);
+        header();
+    }
+
+    /**
+     * Marks the slot of the given key as removed.
+     */
+    private void remove(byte[] key) {
+        Mapping m = mapping;
+        int slot = find(m, slots, key);
+        if (slot >= 0) {
+            long record = m.getLong(HEADER + slot * 8L);
+            garbage += 8L + m.getInt(record) + m.getInt(record + 4);
+            m.putLong(HEADER + slot * 8L, REMOVED);
+            live--;
+            header();
+        }
+    }
+
+    /**
+     * Appends a record of the given key and value to the file, growing it if needed, and returns its offset.
+     */
+    private long append(byte[] key, byte[] value) throws IOException {
+        long record = end;
+        long next = record + 8 + key.length + value.length;
+        if (next > mapping.length) {
+            mapping = grow(channel, mapping, Math.max(next, mapping.length + Math.min(mapping.length, segment)), segment);
+        }
+        Mapping m = mapping;
+        m.putInt(record, key.length);
+        m.putInt(record + 4, value.length);
+        m.put(record + 8, key, 0, key.length);
+        m.put(record + 8 + key.length, value, 0, value.length);
+        // The end moves once the record is complete
+        end = next;
+        return record;
+    }
+
+    /**
+     * Rewrites the file if forced, or if replaced and removed records make up most of it.
+     */
+    private void compact(boolean force) throws IOException {
+        if (force || (garbage >= GARBAGE && garbage * 2 > end - HEADER - slots * 8L)) {
+            int count = slots;
+            // Shrink the index if most entries have been removed
+            while (count > SLOTS && live * 4L < count) {
+                count /= 2;
+            }
+            rewrite(count);
+        }
+    }
+
+    /**
+     * Rewrites the live records into a new file with the given number of slots, which then replaces the file.
+     */
+    private void rewrite(int count) throws IOException {
+        Mapping m = mapping;
+        long start = HEADER + count * 8L;
+        long length = start + (end - HEADER - slots * 8L - garbage) + GROWTH;
+        File temporary = AtomicFile.temporary(file);
+        try {
+            FileChannel c = FileChannel.open(temporary.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            Mapping t;
+            long e = start;
+            try {
+                t = grow(c, null, length, segment);
+                int mask = count - 1;
+                byte[] buffer = new byte[(int) Math.min(GROWTH, segment)];
+                for (int slot = 0; slot < slots; slot++) {
+                    long record = m.getLong(HEADER + slot * 8L);
+                    if (record == EMPTY || record == REMOVED) {
+                        continue;
+                    }
+                    int k = m.getInt(record);
+                    long size = 8L + k + m.getInt(record + 4);
+                    int s = m.getHash(record + 8, k) & mask;
+                    while (t.getLong(HEADER + s * 8L) != EMPTY) {
+                        s = (s + 1) & mask;
+                    }
+                    t.putLong(HEADER + s * 8L, e);
+                    for (long copied = 0; copied < size;) {
+                        int n = (int) Math.min(buffer.length, size - copied);
+                        m.get(record + copied, buffer, 0, n);
+                        t.put(e + copied, buffer, 0, n);
+                        copied += n;
+                    }
+                    e += size;
+                }
+                t.putInt(0, MAGIC);
+                t.putInt(4, VERSION);
+                t.putInt(8, count);
+                t.putInt(12, live);
+                t.putInt(16, live);
+                t.putLong(24, e);
+                t.putLong(32, 0);
+                t.force();
+            } finally {
+                c.close();
+            }
+            AtomicFile.replace(temporary, file);
+            // The new mapping remains valid, and now maps the file
+            channel.close();
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            mapping = t;
+            slots = count;
+            used = live;
+            end = e;
+            garbage = 0;
+        } finally {
+            Files.deleteIfExists(temporary.toPath());
+        }
+    }
+
+    /**
+     * Writes the counts to the header of the file.
+     */
+    private void header() {
+        Mapping m = mapping;
+        m.putInt(8, slots);
+        m.putInt(12, used);
+        m.putInt(16, live);
+        m.putLong(24, end);
+        m.putLong(32, garbage);
+    }
+
+    /**
+     * Extends the file of the given channel to the given length, and returns a new mapping of all of it,
+     * reusing the segments of the given mapping of the same file, if any.
+     */
+    private static Mapping grow(FileChannel channel, Mapping mapping, long length, long segment) throws IOException {
+        if (channel.size() < length) {
+            channel.write(ByteBuffer.wrap(new byte[1]), length - 1);
+        }
+        return new Mapping(channel, length, segment, mapping);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getName() + "@" + Integer.toHexString(hashCode()) + "\nfile: " + file + "\nentries: " + size() + "\n";
+    }
+
+    /**
+     * A file mapped in segments, which reads and writes values spanning the segments.
+     */
+    private static final class Mapping {
+
+        private final MappedByteBuffer[] buffers;
+        private final long segment;
+        private final long length;
+
+        Mapping(FileChannel channel, long length, long segment, Mapping previous) throws IOException {
+            this.segment = segment;
+            this.length = length;
+            buffers = new MappedByteBuffer[(int) ((length + segment - 1) / segment)];
+            for (int i = 0; i < buffers.length; i++) {
+                long position = i * segment;
+                if (previous != null && i < previous.buffers.length && previous.buffers[i].limit() == segment) {
+                    // Full segments of the same file are unchanged
+                    buffers[i] = previous.buffers[i];
+                    continue;
+                }
+                buffers[i] = channel.map(FileChannel.MapMode.READ_WRITE, position, Math.min(segment, length - position));
+            }
+        }
+
+        int getInt(long position) {
+            MappedByteBuffer buffer = buffers[(int) (position / segment)];
+            int offset = (int) (position % segment);
+            if (offset + 4 <= buffer.limit()) {
+                return buffer.getInt(offset);
+            }
+            byte[] bytes = new byte[4];
+            get(position, bytes, 0, 4);
+            return ByteBuffer.wrap(bytes).getInt();
+        }
+
+        void putInt(long position, int value) {
+            MappedByteBuffer buffer = buffers[(int) (position / segment)];
+            int offset = (int) (position % segment);
+            if (offset + 4 <= buffer.limit()) {
+                buffer.putInt(offset, value);
+            } else {
+                put(position, ByteBuffer.allocate(4).putInt(value).array(), 0, 4);
+            }
+        }
+
+        // Longs are aligned, and so never span segments
+
+        long getLong(long position) {
+            return buffers[(int) (position / segment)].getLong((int) (position % segment));
+        }
+
+        void putLong(long position, long value) {
+            buffers[(int) (position / segment)].putLong((int) (position % segment), value);
+        }
+
+        void get(long position, byte[] bytes, int offset, int length) {
+            while (length > 0) {
+                ByteBuffer buffer = buffers[(int) (position / segment)].duplicate();
+                buffer.position((int) (position % segment));
+                int n = Math.min(length, buffer.remaining());
+                buffer.get(bytes, offset, n);
+                position += n;
+                offset += n;
+                length -= n;
+            }
+        }
+
+        void put(long position, byte[] bytes, int offset, int length) {
+            while (length > 0) {
+                ByteBuffer buffer = buffers[(int) (position / segment)].duplicate();
+                buffer.position((int) (position % segment));
+                int n = Math.min(length, buffer.remaining());
+                buffer.put(bytes, offset, n);
+                position += n;
+                offset += n;
+                length -= n;
+            }
+        }
+
+        /**
+         * Returns the string of the given number of UTF-8 bytes at the given position.
+         */
+        String getString(long position, int length) {
+            byte[] bytes = new byte[length];
+            get(position, bytes, 0, length);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Returns the hash of the given number of bytes at the given position.
+         */
+        int getHash(long position, int length) {
+            byte[] bytes = new byte[length];
+            get(position, bytes, 0, length);
+            return BinaryConfig.hash(bytes);
+        }
+
+        /**
+         * Returns true iff the given number of bytes at the given position start with the given prefix.
+         */
+        boolean startsWith(long position, int length, byte[] prefix) {
+            if (length < prefix.length) {
+                return false;
+            }
+            byte[] bytes = new byte[prefix.length];
+            get(position, bytes, 0, prefix.length);
+            for (int i = 0; i < prefix.length; i++) {
+                if (bytes[i] != prefix[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void force() {
+            for (MappedByteBuffer buffer : buffers) {
+                buffer.force();
+            }
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2018 Stuart Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package config;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * A read-only config of a few entries on top of its parent, made by Config.fork.
+ *
+ * <p>
+ * The entries are held in a persistent map, so forking an overlay makes a sibling which shares them.
+ * An overlay caches no resolutions, instead its parent resolves and caches the keys it does not have.
+ * </p>
+ */
+final class OverlayConfig extends Config {
+
+    /**
+     * Returns the given map with the given key/value pairs.
+     */
+    static PersistentMap<Value> with(PersistentMap<Value> entries, Map<String, String> overrides) {
+        for (Entry<String, String> e : overrides.entrySet()) {
+            if (!e.getKey().isEmpty()) {
+                entries = entries.put(e.getKey(), new Value(e.getValue()));
+            }
+        }
+        return entries;
+    }
+
+    private final Config parent;
+    private final PersistentMap<Value> entries;
+
+    OverlayConfig(Config parent, PersistentMap<Value> entries) {
+        super(parent, null, null, false);
+        this.parent = parent;
+        this.entries = entries;
+    }
+
+    @Override
+    Resolution resolve(String key) {
+        Value value = entries.get(key);
+        if (value != null) {
+            return new Resolution(this, value, 0);
+        }
+        Resolution resolution = parent.resolve(key);
+        if (resolution == null) {
+            return null;
+        }
+        return new Resolution(resolution.owner, resolution.value, resolution.depth + 1);
+    }
+
+    @Override
+    Value local(String key) {
+        return entries.get(key);
+    }
+
+    @Override
+    Iterator<Entry<String, Value>> locals(String prefix) {
+        return PrefixIterator.filter(entries.iterator(), prefix, false);
+    }
+
+    @Override
+    public Config fork(Map<String, String> overrides) {
+        return new OverlayConfig(parent, with(entries, overrides));
+    }
+
+    @Override
+    long digest() {
+        return scan();
+    }
+
+    @Override
+    public Config put(String key, String value) {
+        throw new UnsupportedOperationException("Overlays cannot be changed");
+    }
+
+    @Override
+    void apply(Map<String, String> puts, Collection<String> removes) {
+        throw new UnsupportedOperationException("Overlays cannot be changed");
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getName() + "@" + Integer.toHexString(hashCode()) + "\nentries: " + entries.size() + "\n" + parent;
+    }
+}
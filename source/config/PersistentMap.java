@@ -0,0 +1,401 @@
+/*
+ * Copyright 2018 Stuart Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package config;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+
+/**
+ * An immutable map of strings to values, which shares structure with the map it was changed from.
+ *
+ * <p>
+ * Small maps are held inline as a single array of keys and values, which is scanned, and copied on change.
+ * Larger maps are hash array mapped tries, where a change copies only the nodes on the path to its key,
+ * so it costs O(log n) and the rest is shared.
+ * </p>
+ */
+final class PersistentMap<V> implements Iterable<Entry<String, V>> {
+
+    // The most entries held inline
+    static final int INLINE = 8;
+    private static final Object[] NONE = new Object[0];
+    private static final PersistentMap<Object> EMPTY = new PersistentMap<>(NONE, 0);
+
+    /**
+     * Returns the empty map.
+     */
+    @SuppressWarnings("unchecked")
+    static <V> PersistentMap<V> empty() {
+        return (PersistentMap<V>) EMPTY;
+    }
+
+    // Either the inline keys and values, or the root node of the trie
+    private final Object[] inline;
+    private final Node root;
+    private final int size;
+
+    private PersistentMap(Object[] inline, int size) {
+        this.inline = inline;
+        this.root = null;
+        this.size = size;
+    }
+
+    private PersistentMap(Node root, int size) {
+        this.inline = null;
+        this.root = root;
+        this.size = size;
+    }
+
+    /**
+     * Returns the number of entries in this map.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Returns the value of the given key, or null if this map does not have the given key.
+     */
+    @SuppressWarnings("unchecked")
+    V get(String key) {
+        if (inline != null) {
+            for (int i = 0; i < inline.length; i += 2) {
+                if (key.equals(inline[i])) {
+                    return (V) inline[i + 1];
+                }
+            }
+            return null;
+        }
+        return (V) root.get(key, hash(key), 0);
+    }
+
+    /**
+     * Returns a map with the given key/value pair, replacing the value of the given key, if any.
+     */
+    PersistentMap<V> put(String key, V value) {
+        if (inline != null) {
+            for (int i = 0; i < inline.length; i += 2) {
+                if (key.equals(inline[i])) {
+                    if (inline[i + 1] == value) {
+                        return this;
+                    }
+                    Object[] array = inline.clone();
+                    array[i + 1] = value;
+                    return new PersistentMap<>(array, size);
+                }
+            }
+            if (size < INLINE) {
+                Object[] array = new Object[inline.length + 2];
+                System.arraycopy(inline, 0, array, 0, inline.length);
+                array[inline.length] = key;
+                array[inline.length + 1] = value;
+                return new PersistentMap<>(array, size + 1);
+            }
+            Node node = BitmapNode.EMPTY;
+            for (int i = 0; i < inline.length; i += 2) {
+                node = node.put((String) inline[i], hash((String) inline[i]), 0, inline[i + 1]);
+            }
+            return new PersistentMap<>(node.put(key, hash(key), 0, value), size + 1);
+        }
+        int h = hash(key);
+        boolean added = root.get(key, h, 0) == null;
+        Node node = root.put(key, h, 0, value);
+        return node == root ? this : new PersistentMap<>(node, added ? size + 1 : size);
+    }
+
+    /**
+     * Returns a map without the given key.
+     */
+    PersistentMap<V> remove(String key) {
+        if (inline != null) {
+            for (int i = 0; i < inline.length; i += 2) {
+                if (key.equals(inline[i])) {
+                    Object[] array = new Object[inline.length - 2];
+                    System.arraycopy(inline, 0, array, 0, i);
+                    System.arraycopy(inline, i + 2, array, i, inline.length - i - 2);
+                    return new PersistentMap<>(array, size - 1);
+                }
+            }
+            return this;
+        }
+        int h = hash(key);
+        if (root.get(key, h, 0) == null) {
+            return this;
+        }
+        Node node = root.remove(key, h, 0);
+        return new PersistentMap<>(node == null ? BitmapNode.EMPTY : node, size - 1);
+    }
+
+    @Override
+    public Iterator<Entry<String, V>> iterator() {
+        final Deque<Object[]> arrays = new ArrayDeque<>();
+        final Deque<Integer> indices = new ArrayDeque<>();
+        arrays.push(inline != null ? inline : root.array());
+        indices.push(0);
+        return new Iterator<Entry<String, V>>() {
+
+            @Override
+            public boolean hasNext() {
+                while (!arrays.isEmpty()) {
+                    Object[] array = arrays.peek();
+                    int index = indices.peek();
+                    if (index >= array.length) {
+                        arrays.pop();
+                        indices.pop();
+                    } else if (array[index] == null) {
+                        // A nested node, which is visited before the rest of this one
+                        indices.pop();
+                        indices.push(index + 2);
+                        arrays.push(((Node) array[index + 1]).array());
+                        indices.push(0);
+                    } else {
+                        return true;
+                    }
+                }
+                return false;
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public Entry<String, V> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Object[] array = arrays.peek();
+                int index = indices.pop();
+                indices.push(index + 2);
+                return new SimpleImmutableEntry<>((String) array[index], (V) array[index + 1]);
+            }
+        };
+    }
+
+    /**
+     * Returns the hash of the given key, with its high bits spread to the low bits.
+     */
+    private static int hash(String key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Returns the bit of the given hash at the given level of the trie.
+     */
+    private static int bit(int hash, int shift) {
+        return 1 << ((hash >>> shift) & 31);
+    }
+
+    /**
+     * A node of the trie, holding pairs of keys and values, where a null key pairs with a nested node.
+     */
+    private abstract static class Node {
+
+        abstract Object[] array();
+
+        abstract Object get(String key, int hash, int shift);
+
+        abstract Node put(String key, int hash, int shift, Object value);
+
+        // Returns null once the node is empty
+        abstract Node remove(String key, int hash, int shift);
+    }
+
+    /**
+     * A node with a pair for each bit set in its bitmap.
+     */
+    private static final class BitmapNode extends Node {
+
+        static final BitmapNode EMPTY = new BitmapNode(0, NONE);
+
+        private final int bitmap;
+        private final Object[] array;
+
+        private BitmapNode(int bitmap, Object[] array) {
+            this.bitmap = bitmap;
+            this.array = array;
+        }
+
+        @Override
+        Object[] array() {
+            return array;
+        }
+
+        private int index(int bit) {
+            return 2 * Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        @Override
+        Object get(String key, int hash, int shift) {
+            int bit = bit(hash, shift);
+            if ((bitmap & bit) == 0) {
+                return null;
+            }
+            int index = index(bit);
+            Object k = array[index];
+            if (k == null) {
+                return ((Node) array[index + 1]).get(key, hash, shift + 5);
+            }
+            return key.equals(k) ? array[index + 1] : null;
+        }
+
+        @Override
+        Node put(String key, int hash, int shift, Object value) {
+            int bit = bit(hash, shift);
+            int index = index(bit);
+            if ((bitmap & bit) == 0) {
+                Object[] a = new Object[array.length + 2];
+                System.arraycopy(array, 0, a, 0, index);
+                a[index] = key;
+                a[index + 1] = value;
+                System.arraycopy(array, index, a, index + 2, array.length - index);
+                return new BitmapNode(bitmap | bit, a);
+            }
+            Object k = array[index];
+            Object v = array[index + 1];
+            Node nested;
+            if (k == null) {
+                nested = ((Node) v).put(key, hash, shift + 5, value);
+                if (nested == v) {
+                    return this;
+                }
+            } else if (key.equals(k)) {
+                if (v == value) {
+                    return this;
+                }
+                return replace(index, k, value);
+            } else {
+                // Both keys move down into a new node
+                int h = hash((String) k);
+                if (h == hash) {
+                    nested = new CollisionNode(hash, new Object[] { k, v, key, value });
+                } else {
+                    nested = EMPTY.put((String) k, h, shift + 5, v).put(key, hash, shift + 5, value);
+                }
+            }
+            return replace(index, null, nested);
+        }
+
+        @Override
+        Node remove(String key, int hash, int shift) {
+            int bit = bit(hash, shift);
+            if ((bitmap & bit) == 0) {
+                return this;
+            }
+            int index = index(bit);
+            Object k = array[index];
+            if (k == null) {
+                Node nested = ((Node) array[index + 1]).remove(key, hash, shift + 5);
+                if (nested == array[index + 1]) {
+                    return this;
+                }
+                if (nested != null) {
+                    return replace(index, null, nested);
+                }
+            } else if (!key.equals(k)) {
+                return this;
+            }
+            if (bitmap == bit) {
+                return null;
+            }
+            Object[] a = new Object[array.length - 2];
+            System.arraycopy(array, 0, a, 0, index);
+            System.arraycopy(array, index + 2, a, index, array.length - index - 2);
+            return new BitmapNode(bitmap & ~bit, a);
+        }
+
+        private BitmapNode replace(int index, Object key, Object value) {
+            Object[] a = array.clone();
+            a[index] = key;
+            a[index + 1] = value;
+            return new BitmapNode(bitmap, a);
+        }
+    }
+
+    /**
+     * A node of keys which all have the same hash.
+     */
+    private static final class CollisionNode extends Node {
+
+        private final int hash;
+        private final Object[] array;
+
+        private CollisionNode(int hash, Object[] array) {
+            this.hash = hash;
+            this.array = array;
+        }
+
+        @Override
+        Object[] array() {
+            return array;
+        }
+
+        private int index(String key) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (key.equals(array[i])) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        Object get(String key, int hash, int shift) {
+            int index = index(key);
+            return index < 0 ? null : array[index + 1];
+        }
+
+        @Override
+        Node put(String key, int hash, int shift, Object value) {
+            if (hash != this.hash) {
+                // Nest this node beside the new key
+                return new BitmapNode(bit(this.hash, shift), new Object[] { null, this }).put(key, hash, shift, value);
+            }
+            int index = index(key);
+            Object[] a;
+            if (index < 0) {
+                a = new Object[array.length + 2];
+                System.arraycopy(array, 0, a, 0, array.length);
+                index = array.length;
+                a[index] = key;
+            } else if (array[index + 1] == value) {
+                return this;
+            } else {
+                a = array.clone();
+            }
+            a[index + 1] = value;
+            return new CollisionNode(hash, a);
+        }
+
+        @Override
+        Node remove(String key, int hash, int shift) {
+            int index = index(key);
+            if (index < 0) {
+                return this;
+            }
+            if (array.length == 2) {
+                return null;
+            }
+            Object[] a = new Object[array.length - 2];
+            System.arraycopy(array, 0, a, 0, index);
+            System.arraycopy(array, index + 2, a, index, array.length - index - 2);
+            return new CollisionNode(hash, a);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2018 Stuart Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package config;
+
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+
+/**
+ * An iterator over the entries whose keys start with a prefix, which finds each entry one ahead of the caller.
+ *
+ * <p>
+ * Subclasses only find the next matching entry; the first is found on the first call to hasNext or next,
+ * once the subclass is fully constructed.
+ * </p>
+ */
+abstract class PrefixIterator<V> implements Iterator<Entry<String, V>> {
+
+    private Entry<String, V> next;
+    private boolean found;
+
+    /**
+     * Returns an iterator over the entries of the given iterator whose keys start with the given prefix.
+     * Iff sorted, the entries are in key order from the first key not less than the prefix,
+     * and so the iteration ends at the first key without it.
+     */
+    static <V> Iterator<Entry<String, V>> filter(Iterator<Entry<String, V>> i, String prefix, boolean sorted) {
+        if (prefix.isEmpty()) {
+            return i;
+        }
+        return new PrefixIterator<V>() {
+            @Override
+            Entry<String, V> advance() {
+                while (i.hasNext()) {
+                    Entry<String, V> e = i.next();
+                    if (e.getKey().startsWith(prefix)) {
+                        return e;
+                    } else if (sorted) {
+                        return null;
+                    }
+                }
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Returns the next matching entry, or null if there are no more.
+     */
+    abstract Entry<String, V> advance();
+
+    @Override
+    public boolean hasNext() {
+        if (!found) {
+            next = advance();
+            found = true;
+        }
+        return next != null;
+    }
+
+    @Override
+    public Entry<String, V> next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        found = false;
+        return next;
+    }
+}
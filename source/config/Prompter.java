@@ -0,0 +1,126 @@
+/*
+ * Copyright 2018 Stuart Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package config;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Answers gets which may prompt for missing keys on a single dedicated thread,
+ * so callers never block on the input-stream.
+ *
+ * <p>
+ * Gets of the same key which are waiting at the same time share a single prompt and answer,
+ * whichever config they were asked of, until the answer is read and the next get prompts again.
+ * The thread ends once it has been idle for a second, and is started again by the next get.
+ * </p>
+ */
+final class Prompter {
+
+    /**
+     * The gets of a single key waiting on the same prompt, and its answer once read.
+     */
+    private static final class Flight {
+        private final String key;
+        // Guarded by the prompter
+        private int gets;
+        private boolean answered;
+        private String answer;
+
+        private Flight(String key) {
+            this.key = key;
+        }
+    }
+
+    private final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+        Thread thread = new Thread(r, "config-prompter");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // The flight of each key with waiting gets which has not been answered yet, guarded by this
+    private final Map<String, Flight> flights = new HashMap<>();
+    // The flight of the get being run by the prompter thread
+    private final ThreadLocal<Flight> running = new ThreadLocal<>();
+
+    Prompter() {
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Returns a future of the result of the given reader, which gets the given key,
+     * sharing the prompt for the key with any other waiting gets of it.
+     */
+    CompletableFuture<String> submit(String key, Supplier<String> reader) {
+        final Flight flight;
+        synchronized (this) {
+            Flight f = flights.get(key);
+            if (f == null) {
+                f = new Flight(key);
+                flights.put(key, f);
+            }
+            f.gets++;
+            flight = f;
+        }
+        CompletableFuture<String> future = new CompletableFuture<>();
+        executor.execute(() -> {
+            running.set(flight);
+            try {
+                future.complete(reader.get());
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+            } finally {
+                running.remove();
+                synchronized (this) {
+                    if (--flight.gets == 0) {
+                        flights.remove(flight.key, flight);
+                    }
+                }
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Returns the answer of the given asker for the given key,
+     * or the answer already read for the flight being run if it is of the same key.
+     */
+    String ask(String key, Callable<String> asker) throws Exception {
+        Flight flight = running.get();
+        if (flight == null || !flight.key.equals(key)) {
+            return asker.call();
+        }
+        synchronized (this) {
+            if (flight.answered) {
+                return flight.answer;
+            }
+        }
+        String answer = asker.call();
+        synchronized (this) {
+            flight.answered = true;
+            flight.answer = answer;
+            // Later gets of the key prompt again
+            flights.remove(key, flight);
+        }
+        return answer;
+    }
+}
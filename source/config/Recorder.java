@@ -0,0 +1,48 @@
+/*
+ * Copyright 2018 Stuart Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package config;
+
+/**
+ * Records the changes made to a single config in a hierarchy, such as to journal or replicate them.
+ *
+ * <p>
+ * Recorders are called while holding the hierarchy lock, so they see the changes one at a time and in order.
+ * </p>
+ */
+interface Recorder {
+
+    /**
+     * Returns the config whose changes are recorded.
+     */
+    Config getConfig();
+
+    /**
+     * Called while holding the hierarchy lock, before the given key of the config is changed.
+     */
+    void touch(String key);
+
+    /**
+     * Called while holding the hierarchy lock, once a change to the config ends, to record the keys it touched.
+     * Returns the position to sync up to, or -1 if there is nothing to wait for.
+     */
+    long append();
+
+    /**
+     * Called outside the hierarchy lock, to wait until everything appended up to the given position is recorded.
+     */
+    void sync(long position);
+}
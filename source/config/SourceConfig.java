@@ -0,0 +1,202 @@
+/*
+ * Copyright 2018 Stuart Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package config;
+
+import java.io.Closeable;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A read-only config holding the key/value pairs fetched from a source, which is refreshed in the background.
+ *
+ * <p>
+ * The fetched values live for the given time to live, after which they are stale and the source is fetched again,
+ * on the given executor, so gets always see the cached values and never wait for the source.
+ * The first fetch starts when the config is created, and until it completes the config is empty;
+ * the future returned by refresh can be used to wait for it.
+ * Only one fetch is in flight at a time; refreshes requested while one is in flight share it,
+ * and each fetch puts off the next scheduled one by the time to live.
+ * The changes made by each fetch are published as a single change.
+ * If a fetch fails the cached values are kept, stale, until the given expiry passes since the last successful fetch,
+ * and are then removed.
+ * </p>
+ */
+public class SourceConfig extends Config implements Closeable {
+
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "SourceConfig");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final ConfigSource source;
+    private final Executor executor;
+    private final long ttl;
+    private final long expiry;
+    private final AtomicReference<CompletableFuture<Void>> fetching = new AtomicReference<>();
+    // The time of the last successful fetch, as System.nanoTime, valid once fetched is true
+    private volatile long time;
+    private volatile boolean fetched;
+    private volatile boolean closed;
+    private ScheduledFuture<?> task;
+
+    /**
+     * Creates a config of the given source with the given parent,
+     * whose fetched values live for the given time to live, and are kept while the source is failing.
+     */
+    public SourceConfig(Config parent, ConfigSource source, long ttl, TimeUnit unit) {
+        this(parent, source, ttl, unit, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Creates a config of the given source with the given parent, which fetches on the given executor,
+     * and whose fetched values live for the given time to live, and are kept while the source is failing.
+     */
+    public SourceConfig(Config parent, ConfigSource source, long ttl, TimeUnit unit, Executor executor) {
+        this(parent, source, ttl, Long.MAX_VALUE, unit, executor);
+    }
+
+    /**
+     * Creates a config of the given source with the given parent, which fetches on the given executor,
+     * and whose fetched values live for the given time to live, and are removed once the given expiry
+     * passes without a successful fetch.
+     */
+    public SourceConfig(Config parent, ConfigSource source, long ttl, long expiry, TimeUnit unit, Executor executor) {
+        super(parent);
+        this.source = source;
+        this.executor = executor;
+        this.ttl = unit.toNanos(ttl);
+        this.expiry = unit.toNanos(expiry);
+        refresh();
+    }
+
+    /**
+     * Returns true iff the cached values are older than the time to live,
+     * or have not been fetched yet, so a fetch is due.
+     */
+    public boolean isStale() {
+        return !fetched || System.nanoTime() - time >= ttl;
+    }
+
+    /**
+     * Fetches the source in the background, unless a fetch is already in flight,
+     * and returns a future which completes once the fetched values are published.
+     */
+    public CompletableFuture<Void> refresh() {
+        while (true) {
+            CompletableFuture<Void> future = fetching.get();
+            if (future != null) {
+                return future;
+            }
+            CompletableFuture<Void> created = new CompletableFuture<>();
+            if (fetching.compareAndSet(null, created)) {
+                executor.execute(() -> {
+                    try {
+                        Map<String, String> entries = source.fetch();
+                        time = System.nanoTime();
+                        fetched = true;
+                        update(entries == null ? Collections.<String, String>emptyMap() : entries);
+                        schedule();
+                        fetching.set(null);
+                        created.complete(null);
+                    } catch (Throwable t) {
+                        if (fetched && System.nanoTime() - time >= expiry) {
+                            update(Collections.<String, String>emptyMap());
+                        }
+                        schedule();
+                        fetching.set(null);
+                        created.completeExceptionally(t);
+                    }
+                });
+                return created;
+            }
+        }
+    }
+
+    /**
+     * Schedules the next fetch for when the values just fetched go stale, or for a retry after a failed fetch,
+     * replacing any fetch already scheduled.
+     */
+    private synchronized void schedule() {
+        if (task != null) {
+            task.cancel(false);
+        }
+        if (!closed) {
+            task = SCHEDULER.schedule(this::refresh, ttl, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Stops refreshing the source, keeping the cached values.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        if (task != null) {
+            task.cancel(false);
+        }
+    }
+
+    @Override
+    public Config put(String key, String value) {
+        throw new UnsupportedOperationException("Source configs cannot be changed");
+    }
+
+    @Override
+    void apply(Map<String, String> puts, Collection<String> removes) {
+        throw new UnsupportedOperationException("Source configs cannot be changed");
+    }
+
+    /**
+     * Replaces the cached values with the given values, changing only those which differ.
+     */
+    private void update(Map<String, String> entries) {
+        Map<String, String> puts = new HashMap<>();
+        Set<String> removes = new HashSet<>();
+        for (Iterator<Entry<String, Value>> i = locals(""); i.hasNext();) {
+            String key = i.next().getKey();
+            if (!entries.containsKey(key)) {
+                removes.add(key);
+            }
+        }
+        for (Entry<String, String> e : entries.entrySet()) {
+            if (e.getKey() != null && e.getValue() != null) {
+                Value value = local(e.getKey());
+                if (value == null || !value.raw.equals(e.getValue())) {
+                    puts.put(e.getKey(), e.getValue());
+                }
+            }
+        }
+        if (!puts.isEmpty() || !removes.isEmpty()) {
+            super.apply(puts, removes);
+        }
+    }
+}
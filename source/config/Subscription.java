@@ -0,0 +1,94 @@
+/*
+ * Copyright 2018 Stuart Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package config;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * A listener subscribed to the keys of a config with a given prefix.
+ *
+ * <p>
+ * Changes accumulate until the listener is run on its executor,
+ * so any number of changes made before then are delivered as a single batch.
+ * </p>
+ */
+final class Subscription implements Runnable {
+
+    final Config config;
+    final String prefix;
+    final ConfigListener listener;
+    private final Executor executor;
+    private Map<String, String> pending = new HashMap<>();
+    private boolean scheduled = false;
+
+    Subscription(Config config, String prefix, ConfigListener listener, Executor executor) {
+        this.config = config;
+        this.prefix = prefix;
+        this.listener = listener;
+        this.executor = executor;
+    }
+
+    /**
+     * Adds the given changes to the pending batch, called while holding the hierarchy lock
+     * so changes are added in the order they were made.
+     * Returns true iff delivery must now be scheduled, which is done by schedule once the lock is released.
+     */
+    synchronized boolean add(Map<String, String> changes) {
+        pending.putAll(changes);
+        if (scheduled) {
+            return false;
+        }
+        scheduled = true;
+        return true;
+    }
+
+    /**
+     * Schedules delivery of the pending batch on the executor.
+     */
+    void schedule() {
+        executor.execute(this);
+    }
+
+    /**
+     * Delivers the pending batch, and then any batch added meanwhile, so deliveries never overlap.
+     */
+    @Override
+    public void run() {
+        Map<String, String> changes;
+        synchronized (this) {
+            changes = pending;
+            pending = new HashMap<>();
+        }
+        try {
+            if (!changes.isEmpty()) {
+                listener.changed(config, Collections.unmodifiableMap(changes));
+            }
+        } finally {
+            boolean again;
+            synchronized (this) {
+                again = !pending.isEmpty();
+                scheduled = again;
+            }
+            if (again) {
+                schedule();
+            }
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2018 Stuart Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package config;
+
+/**
+ * A value held by a config, alongside the forms derived from it.
+ */
+final class Value {
+
+    private static final byte UNPARSED = 0;
+    private static final byte VALID = 1;
+    private static final byte INVALID = 2;
+
+    final String raw;
+    // Compiled iff the value is a lookup query
+    final Lookup lookup;
+    // True iff the value is either "true" or "false"
+    final boolean isBoolean;
+    final boolean bool;
+    // Parsed on first use, the state is written after the result so reading it first publishes the result
+    private volatile byte numberState;
+    private double number;
+    private volatile byte integerState;
+    private long integer;
+
+    Value(String raw) {
+        this.raw = raw;
+        this.lookup = raw.startsWith("?") ? Lookup.compile(raw) : null;
+        this.bool = raw.equals("true");
+        this.isBoolean = bool || raw.equals("false");
+    }
+
+    /**
+     * Returns true iff the value parses as a double.
+     */
+    boolean isNumber() {
+        byte state = numberState;
+        if (state == UNPARSED) {
+            try {
+                number = Double.parseDouble(raw);
+                state = VALID;
+            } catch (NumberFormatException e) {
+                state = INVALID;
+            }
+            numberState = state;
+        }
+        return state == VALID;
+    }
+
+    /**
+     * Returns the double parsed from the value, only valid iff isNumber.
+     */
+    double number() {
+        return number;
+    }
+
+    /**
+     * Returns true iff the value parses as a long.
+     */
+    boolean isInteger() {
+        byte state = integerState;
+        if (state == UNPARSED) {
+            try {
+                integer = Long.parseLong(raw);
+                state = VALID;
+            } catch (NumberFormatException e) {
+                state = INVALID;
+            }
+            integerState = state;
+        }
+        return state == VALID;
+    }
+
+    /**
+     * Returns the long parsed from the value, only valid iff isInteger.
+     */
+    long integer() {
+        return integer;
+    }
+
+    @Override
+    public String toString() {
+        return raw;
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2018 Stuart Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package config;
+
+import org.junit.runner.RunWith;
+import org.junit.runners.Suite;
+
+/**
+ * Runs every test class, as the build's JUnit target only takes a single class.
+ */
+@RunWith(Suite.class)
+@Suite.SuiteClasses({
+    BinaryConfigTest.class,
+    BloomFilterTest.class,
+    CompactConfigTest.class,
+    ConfigJournalTest.class,
+    ConfigMetricsTest.class,
+    ConfigPrimaryTest.class,
+    ConfigTest.class,
+    ConfigWatcherTest.class,
+    LazyConfigTest.class,
+    MappedConfigTest.class,
+    PersistentMapTest.class,
+    PrefixIteratorTest.class,
+    SourceConfigTest.class
+})
+public class AllTests {
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2018 Stuart Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BinaryConfigTest {
+
+    public static final String KEY1 = "key1";
+    public static final String KEY2 = "key2";
+    public static final String VALUE1 = "value1";
+    public static final String VALUE2 = "value2";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void roundTrip() throws Exception {
+        Config parent = new Config();
+        parent.put(KEY1, VALUE1);
+        parent.put("db.shard.1", VALUE1);
+        Config config = new Config(parent);
+        config.put(KEY2, VALUE2);
+        config.put("db.shard.2", VALUE2);
+        config.put("db.shardless", VALUE2);
+        config.put("unicode", "h\u00e9llo \u4e16\u754c");
+        config.put("query", "?<" + KEY1 + ">");
+        config.put("number", "12.5");
+        File file = folder.newFile("binary");
+        config.writeBinary(file);
+
+        BinaryConfig binary = BinaryConfig.open(file);
+        Assert.assertEquals(8, binary.size());
+        Assert.assertEquals(config.getAll(), binary.getAll());
+        Assert.assertEquals(VALUE1, binary.get(KEY1));
+        Assert.assertEquals(VALUE2, binary.get(KEY2));
+        Assert.assertEquals("h\u00e9llo \u4e16\u754c", binary.get("unicode"));
+        Assert.assertEquals(VALUE1, binary.get("query"));
+        Assert.assertEquals(12.5, binary.getNumber("number"), 0.0);
+        Assert.assertNull(binary.get("missing"));
+        Assert.assertFalse(binary.has("db"));
+        Map<String, String> shards = binary.getAll("db.shard.");
+        Assert.assertEquals(2, shards.size());
+        Assert.assertEquals(VALUE2, shards.get("db.shard.2"));
+
+        // Binary configs can be the parent of live configs
+        Config overlay = new Config(binary);
+        overlay.put(KEY1, VALUE2);
+        Assert.assertEquals(VALUE2, overlay.get(KEY1));
+        Assert.assertEquals(VALUE2, overlay.get(KEY2));
+        Assert.assertEquals(3, overlay.getAll("db.").size());
+    }
+
+    @Test
+    public void unhashed() throws Exception {
+        Config config = new Config();
+        for (int i = 0; i < 1000; i++) {
+            config.put(KEY1 + i, VALUE1 + i);
+        }
+        File file = folder.newFile("unhashed");
+        config.writeBinary(file, false);
+        File hashed = folder.newFile("hashed");
+        config.writeBinary(hashed, true);
+        // The hash table takes two slots per entry, rounded up to a power of two
+        Assert.assertEquals(2048 * 4, hashed.length() - file.length());
+
+        for (File f : new File[] { file, hashed }) {
+            BinaryConfig binary = BinaryConfig.open(f);
+            Assert.assertEquals(f == hashed, binary.isHashed());
+            for (int i = 0; i < 1000; i++) {
+                Assert.assertEquals(VALUE1 + i, binary.get(KEY1 + i));
+            }
+            Assert.assertNull(binary.get(KEY2));
+            Assert.assertNull(binary.get(KEY1));
+            Assert.assertEquals(111, binary.getAll(KEY1 + 1).size());
+            Assert.assertEquals(config.getAll(), binary.getAll());
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        config.writeBinary(bytes, false);
+        Assert.assertEquals(file.length(), bytes.size());
+    }
+
+    @Test
+    public void empty() throws Exception {
+        File file = folder.newFile("empty");
+        new Config().writeBinary(file);
+        BinaryConfig binary = BinaryConfig.open(file);
+        Assert.assertEquals(0, binary.size());
+        Assert.assertNull(binary.get(KEY1));
+        Assert.assertTrue(binary.getAll().isEmpty());
+    }
+
+    @Test
+    public void convert() throws Exception {
+        File text = folder.newFile("text");
+        PrintWriter out = new PrintWriter(text);
+        out.write(KEY1 + "=" + VALUE1 + "\n");
+        out.write(KEY2 + "=" + VALUE2 + "\n");
+        out.close();
+        File binary = folder.newFile("binary");
+        BinaryConfig.convertToBinary(text, binary);
+        Assert.assertTrue(BinaryConfig.open(binary).isHashed());
+        File copy = folder.newFile("copy");
+        BinaryConfig.convertToText(binary, copy);
+        Assert.assertEquals(Config.create(text).getAll(), Config.create(copy).getAll());
+
+        BinaryConfig.convertToBinary(text, binary, false);
+        Assert.assertFalse(BinaryConfig.open(binary).isHashed());
+        BinaryConfig.convertToText(binary, copy);
+        Assert.assertEquals(Config.create(text).getAll(), Config.create(copy).getAll());
+    }
+
+    @Test(expected = IOException.class)
+    public void invalid() throws Exception {
+        File file = folder.newFile("invalid");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Config.create(KEY1 + "=" + VALUE1).writeAllLines(bytes);
+        OutputStream out = new FileOutputStream(file);
+        out.write(bytes.toByteArray());
+        out.close();
+        BinaryConfig.open(file);
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void put() throws Exception {
+        File file = folder.newFile("put");
+        new Config().writeBinary(file);
+        BinaryConfig.open(file).put(KEY1, VALUE1);
+    }
+}
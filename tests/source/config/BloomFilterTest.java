@@ -0,0 +1,44 @@
+/*
+ * Copyright 2018 Stuart Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package config;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BloomFilterTest {
+
+    @Test
+    public void mightContain() throws Exception {
+        BloomFilter filter = new BloomFilter(10000);
+        Assert.assertTrue(filter.capacity() >= 10000);
+        for (int i = 0; i < 10000; i++) {
+            filter.add("key" + i);
+        }
+        Assert.assertEquals(10000, filter.count());
+        for (int i = 0; i < 10000; i++) {
+            Assert.assertTrue(filter.mightContain("key" + i));
+        }
+        int positives = 0;
+        for (int i = 0; i < 100000; i++) {
+            if (filter.mightContain("missing" + i)) {
+                positives++;
+            }
+        }
+        // Expect about a quarter of a percent
+        Assert.assertTrue("False positives: " + positives, positives < 1000);
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2018 Stuart Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CompactConfigTest {
+
+    public static final String KEY1 = "key1";
+    public static final String KEY2 = "key2";
+    public static final String VALUE1 = "value1";
+    public static final String VALUE2 = "value2";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void put() throws Exception {
+        CompactConfig config = new CompactConfig();
+        config.put(KEY1, VALUE1);
+        config.put("unicode", "h\u00e9llo \u4e16\u754c \ud83d\ude00");
+        config.put("query", "?<" + KEY1 + ">");
+        config.put("flag");
+        config.put("", VALUE2);
+        Assert.assertEquals(4, config.size());
+        Assert.assertEquals(VALUE1, config.get(KEY1));
+        Assert.assertEquals("h\u00e9llo \u4e16\u754c \ud83d\ude00", config.get("unicode"));
+        Assert.assertEquals(VALUE1, config.get("query"));
+        Assert.assertTrue(config.getBoolean("flag"));
+        Assert.assertNull(config.get(KEY2));
+
+        Config plain = new Config();
+        plain.put(config.list());
+        Assert.assertEquals(plain.getAll(), config.getAll());
+
+        config.transaction().put(KEY2, VALUE2).remove(KEY1).commit();
+        Assert.assertFalse(config.has(KEY1));
+        Assert.assertEquals(VALUE2, config.get(KEY2));
+    }
+
+    @Test
+    public void hierarchy() throws Exception {
+        CompactConfig parent = new CompactConfig();
+        parent.put(KEY1, VALUE1);
+        parent.put("db.host", "localhost");
+        parent.put("db.port", "5432");
+        CompactConfig child = new CompactConfig(parent);
+        child.put("db.port", "6543");
+        child.put("dbx", VALUE2);
+        Assert.assertEquals(VALUE1, child.get(KEY1));
+        Assert.assertEquals(6543, child.getInt("db.port", 0));
+
+        Map<String, String> expected = new HashMap<>();
+        expected.put("db.host", "localhost");
+        expected.put("db.port", "6543");
+        Assert.assertEquals(expected, child.getAll("db."));
+
+        Map<String, String> changes = new HashMap<>();
+        child.subscribe("db.", (c, batch) -> changes.putAll(batch), Runnable::run);
+        parent.put("db.host", "remote");
+        parent.put("db.port", "1");
+        Assert.assertEquals(1, changes.size());
+        Assert.assertEquals("remote", changes.get("db.host"));
+        Assert.assertEquals("remote", child.get("db.host"));
+    }
+
+    @Test
+    public void files() throws Exception {
+        File file = folder.newFile("compact");
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            sb.append(KEY1).append(i).append('=').append(i % 2 == 0 ? VALUE1 : VALUE2).append("\r\n");
+        }
+        sb.append("\n");
+        sb.append("unicode=h\u00e9llo \u4e16\u754c\n");
+        sb.append("=ignored\n");
+        sb.append("flag");
+        OutputStream out = new FileOutputStream(file);
+        out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+        out.close();
+
+        CompactConfig compact = new CompactConfig();
+        compact.readAllLines(file);
+        Assert.assertEquals(1002, compact.size());
+        Assert.assertEquals(VALUE1, compact.get(KEY1 + 0));
+        Assert.assertEquals(VALUE2, compact.get(KEY1 + 999));
+        Assert.assertEquals("h\u00e9llo \u4e16\u754c", compact.get("unicode"));
+        Assert.assertTrue(compact.getBoolean("flag"));
+        Assert.assertEquals(Config.create(file).getAll(), compact.getAll());
+
+        File other = folder.newFile("other");
+        out = new FileOutputStream(other);
+        out.write((KEY1 + "0=" + VALUE2 + "\n" + KEY2 + "=" + VALUE2 + "\n").getBytes(StandardCharsets.UTF_8));
+        out.close();
+        CompactConfig layered = new CompactConfig();
+        layered.readAllLines(file, other);
+        Assert.assertEquals(1003, layered.size());
+        Assert.assertEquals(VALUE2, layered.get(KEY1 + 0));
+        Assert.assertEquals(VALUE2, layered.get(KEY2));
+        Assert.assertEquals(Config.create(file, other).getAll(), layered.getAll());
+    }
+
+    @Test
+    public void table() throws Exception {
+        CompactConfig config = new CompactConfig();
+        String longKey = new String(new char[300]).replace('\0', 'k');
+        config.put(longKey, VALUE1);
+        config.put("\u4e16\u754c", VALUE2);
+        config.put("empty", "");
+        for (int i = 0; i < 10000; i++) {
+            config.put(KEY1 + "." + i, VALUE1 + i);
+        }
+        for (int i = 0; i < 10000; i += 2) {
+            config.transaction().remove(KEY1 + "." + i).commit();
+        }
+        // Removed keys are put again in place of their removed slots
+        for (int i = 0; i < 10000; i += 4) {
+            config.put(KEY1 + "." + i, VALUE2);
+        }
+        Assert.assertEquals(7503, config.size());
+        Assert.assertEquals(VALUE1, config.get(longKey));
+        Assert.assertEquals(VALUE2, config.get("\u4e16\u754c"));
+        Assert.assertEquals("", config.get("empty"));
+        Assert.assertEquals(VALUE2, config.get(KEY1 + ".0"));
+        Assert.assertNull(config.get(KEY1 + ".2"));
+        Assert.assertEquals(VALUE1 + 9999, config.get(KEY1 + ".9999"));
+        Assert.assertEquals(7500, config.getAll(KEY1 + ".").size());
+        Assert.assertEquals(1, config.getAll("\u4e16").size());
+        Assert.assertFalse(config.has(longKey + "k"));
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2018 Stuart Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package config;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ConfigJournalTest {
+
+    public static final String KEY1 = "key1";
+    public static final String KEY2 = "key2";
+    public static final String VALUE1 = "value1";
+    public static final String VALUE2 = "value2";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void replay() throws Exception {
+        File snapshot = new File(folder.getRoot(), "config");
+        File file = new File(folder.getRoot(), "journal");
+        OutputStream out = new FileOutputStream(snapshot);
+        out.write((KEY1 + "=" + VALUE1 + "\n" + "removed=true\n").getBytes());
+        out.close();
+
+        Config parent = new Config().put("parent", VALUE1);
+        Config config = new Config(parent);
+        ConfigJournal journal = new ConfigJournal(config, snapshot, file);
+        Assert.assertSame(config, journal.getConfig());
+        Assert.assertEquals(VALUE1, config.get(KEY1));
+        config.put(KEY2, VALUE2);
+        config.put(KEY1, "h\u00e9llo");
+        config.transaction().put("a", "1").remove("removed").commit();
+        // Changes to the parent are not journaled
+        parent.put("parent", VALUE2);
+        Map<String, String> expected = new HashMap<>();
+        expected.put(KEY1, "h\u00e9llo");
+        expected.put(KEY2, VALUE2);
+        expected.put("a", "1");
+        journal.close();
+        config.put("closed", VALUE1);
+        Assert.assertTrue(file.length() > 0);
+
+        Config reopened = new Config();
+        new ConfigJournal(reopened, snapshot, file).close();
+        Assert.assertEquals(expected, reopened.getAll());
+
+        // A torn record at the end is dropped
+        long length = file.length();
+        out = new FileOutputStream(file, true);
+        out.write(new byte[] { 0, 0, 0, 20, 1, 2 });
+        out.close();
+        reopened = new Config();
+        journal = new ConfigJournal(reopened, snapshot, file);
+        Assert.assertEquals(expected, reopened.getAll());
+        Assert.assertEquals(length, file.length());
+        reopened.put(KEY2, VALUE1);
+        journal.close();
+        reopened = new Config();
+        new ConfigJournal(reopened, snapshot, file).close();
+        Assert.assertEquals(VALUE1, reopened.get(KEY2));
+    }
+
+    @Test
+    public void compact() throws Exception {
+        File snapshot = new File(folder.getRoot(), "config");
+        File file = new File(folder.getRoot(), "journal");
+        Config config = new Config();
+        ConfigJournal journal = new ConfigJournal(config, snapshot, file, 512);
+        for (int i = 0; i < 1000; i++) {
+            config.put(KEY1 + (i % 10), VALUE1 + i);
+        }
+        journal.compact();
+        Assert.assertTrue(snapshot.exists());
+        Assert.assertEquals(0, file.length());
+        config.put(KEY2, VALUE2);
+        journal.close();
+        Assert.assertTrue(file.length() < 512);
+
+        Config reopened = new Config();
+        new ConfigJournal(reopened, snapshot, file).close();
+        Assert.assertEquals(config.getAll(), reopened.getAll());
+        Assert.assertEquals(VALUE1 + 999, reopened.get(KEY1 + 9));
+
+        // A compaction interrupted before the next journal replaced the journal
+        Files.move(file.toPath(), new File(file.getPath() + ".next").toPath());
+        reopened = new Config();
+        new ConfigJournal(reopened, snapshot, file).close();
+        Assert.assertEquals(config.getAll(), reopened.getAll());
+        Assert.assertFalse(new File(file.getPath() + ".next").exists());
+    }
+
+    @Test
+    public void concurrent() throws Exception {
+        File snapshot = new File(folder.getRoot(), "config");
+        File file = new File(folder.getRoot(), "journal");
+        final Config config = new Config();
+        ConfigJournal journal = new ConfigJournal(config, snapshot, file, 4096);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            final int thread = t;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 200; i++) {
+                    config.put(thread + "." + i, VALUE1 + i);
+                }
+            }));
+        }
+        // Explicit compactions too, which sync the previous journal while changes continue
+        threads.add(new Thread(() -> {
+            for (int i = 0; i < 20; i++) {
+                try {
+                    journal.compact();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }));
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        journal.close();
+        Config reopened = new Config();
+        new ConfigJournal(reopened, snapshot, file).close();
+        Assert.assertEquals(1600, reopened.getAll().size());
+        Assert.assertEquals(config.getAll(), reopened.getAll());
+    }
+
+    @Test
+    public void prompts() throws Exception {
+        File snapshot = new File(folder.getRoot(), "config");
+        File file = new File(folder.getRoot(), "journal");
+        ByteArrayInputStream in = new ByteArrayInputStream((VALUE1 + "\n").getBytes());
+        Config config = new Config(null, in, new ByteArrayOutputStream());
+        config.put("save");
+        ConfigJournal journal = new ConfigJournal(config, snapshot, file);
+        Assert.assertEquals(VALUE1, config.get(KEY1));
+        journal.close();
+
+        Config reopened = new Config();
+        new ConfigJournal(reopened, snapshot, file).close();
+        Assert.assertEquals(VALUE1, reopened.get(KEY1));
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2018 Stuart Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package config;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ConfigMetricsTest {
+
+    public static final String KEY1 = "key1";
+    public static final String KEY2 = "key2";
+    public static final String VALUE1 = "value1";
+    public static final String VALUE2 = "value2";
+
+    @Test
+    public void uninstrumented() throws Exception {
+        Config config = new Config();
+        config.put(KEY1, VALUE1);
+        Assert.assertEquals(VALUE1, config.get(KEY1));
+        Assert.assertNull(config.getMetrics());
+    }
+
+    @Test
+    public void gets() throws Exception {
+        Config parent = new Config();
+        parent.put(KEY1, VALUE1);
+        Config child = new Config(new Config(parent));
+        child.put(KEY2, "?<" + KEY1 + ">");
+        ConfigMetrics metrics = child.instrument();
+        Assert.assertSame(metrics, child.instrument());
+        Assert.assertSame(metrics, child.getMetrics());
+
+        Assert.assertEquals(VALUE1, child.get(KEY1));
+        Assert.assertEquals(VALUE1, child.get(KEY1));
+        Assert.assertEquals(VALUE1, child.get(KEY2));
+        Assert.assertNull(child.get("missing"));
+
+        ConfigMetrics.Snapshot snapshot = metrics.snapshot();
+        // The lookup of key2 also gets key1
+        Assert.assertEquals(4, snapshot.getHits());
+        Assert.assertEquals(1, snapshot.getMisses());
+        Assert.assertEquals(Long.valueOf(3), snapshot.getHitsByKey().get(KEY1));
+        Assert.assertEquals(Long.valueOf(1), snapshot.getHitsByKey().get(KEY2));
+        Assert.assertEquals(1, snapshot.getResolutionDepths()[0]);
+        Assert.assertEquals(3, snapshot.getResolutionDepths()[2]);
+        long lookups = 0;
+        for (long latency : snapshot.getLookupLatencies()) {
+            lookups += latency;
+        }
+        Assert.assertEquals(1, lookups);
+        Assert.assertEquals(KEY1 + "=3", metrics.getHotKeys()[0]);
+
+        metrics.reset();
+        Assert.assertEquals(0, metrics.getHits());
+        // Snapshots are not affected by later changes
+        Assert.assertEquals(4, snapshot.getHits());
+    }
+
+    @Test
+    public void prompts() throws Exception {
+        ByteArrayInputStream in = new ByteArrayInputStream((VALUE1 + "\n").getBytes());
+        Config config = new Config(null, in, new ByteArrayOutputStream());
+        ConfigMetrics metrics = config.instrument();
+        Assert.assertEquals(VALUE1, config.get(KEY1));
+        Assert.assertEquals(1, metrics.getPrompts());
+        Assert.assertEquals(1, metrics.getMisses());
+        Assert.assertTrue(metrics.getPromptWaitNanos() >= 0);
+    }
+
+    @Test
+    public void promptsChild() throws Exception {
+        ByteArrayInputStream in = new ByteArrayInputStream((VALUE1 + "\n" + VALUE2 + "\n").getBytes());
+        Config root = new Config(null, in, new ByteArrayOutputStream());
+        Config child = new Config(root);
+        ConfigMetrics metrics = child.instrument();
+        Assert.assertEquals(VALUE1, child.get(KEY1));
+        Assert.assertEquals(VALUE2, child.get(KEY2, Collections.singleton(VALUE2)));
+        Assert.assertEquals(2, metrics.getPrompts());
+        Assert.assertEquals(2, metrics.getMisses());
+        Assert.assertNull(root.getMetrics());
+    }
+
+    @Test
+    public void options() throws Exception {
+        Config parent = new Config();
+        parent.put(KEY1, VALUE1);
+        Config child = new Config(parent);
+        child.put(KEY1, VALUE2);
+        ConfigMetrics metrics = child.instrument();
+        Assert.assertEquals(VALUE2, child.get(KEY1, Collections.singleton(VALUE2)));
+        Assert.assertEquals(VALUE1, child.get(KEY1, Collections.singleton(VALUE1)));
+        // Without streams to ask, the root's value is returned even though it is not one of the options
+        Assert.assertEquals(VALUE1, child.get(KEY1, Collections.singleton("other")));
+        Assert.assertNull(child.get(KEY2, Collections.singleton(VALUE2)));
+        Assert.assertEquals(2, metrics.getHits());
+        Assert.assertEquals(Long.valueOf(2), metrics.getHitsByKey().get(KEY1));
+        Assert.assertEquals(1, metrics.getResolutionDepths()[0]);
+        Assert.assertEquals(1, metrics.getResolutionDepths()[1]);
+        Assert.assertEquals(2, metrics.getMisses());
+        // Accessors which fall back to options count the get once
+        parent.put("flag", "yes");
+        Assert.assertFalse(child.getBoolean("flag"));
+        Assert.assertEquals(3, metrics.getHits());
+        Assert.assertEquals(2, metrics.getMisses());
+        Assert.assertNull(parent.getMetrics());
+    }
+
+    @Test
+    public void accessors() throws Exception {
+        Config parent = new Config();
+        parent.put("flag", "yes");
+        parent.put("number", "12.5");
+        Config config = new Config(parent);
+        config.put("lookup", "?<number>");
+        ConfigMetrics metrics = config.instrument();
+        Assert.assertFalse(config.getBoolean("flag"));
+        Assert.assertEquals(1, metrics.getHits());
+        Assert.assertEquals(12.5, config.getNumber("lookup"), 0.0);
+        Assert.assertEquals(12.5, config.getDouble("lookup", 0.0), 0.0);
+        Assert.assertEquals(0, config.getLong("lookup", 0));
+        // Each lookup also gets the number it refers to
+        Assert.assertEquals(Long.valueOf(3), metrics.getHitsByKey().get("lookup"));
+        Assert.assertEquals(Long.valueOf(3), metrics.getHitsByKey().get("number"));
+        Assert.assertEquals(12.5, config.getNumber("number"), 0.0);
+        Assert.assertEquals(Long.valueOf(4), metrics.getHitsByKey().get("number"));
+        Assert.assertFalse(config.getBoolean("missing"));
+        Assert.assertEquals(1, metrics.getMisses());
+    }
+
+    @Test
+    public void frozen() throws Exception {
+        Config parent = new Config();
+        parent.put(KEY1, VALUE1);
+        parent.put("number", "12");
+        Config child = new Config(parent);
+        child.put(KEY2, "?<" + KEY1 + ">");
+        Config frozen = child.freeze();
+        ConfigMetrics metrics = frozen.instrument();
+        Assert.assertEquals(VALUE1, frozen.get(KEY1));
+        Assert.assertEquals(VALUE1, frozen.get(KEY2));
+        Assert.assertEquals(VALUE1, frozen.get(KEY1, Collections.singleton(VALUE1)));
+        Assert.assertEquals(12, frozen.getInt("number", 0));
+        Assert.assertNull(frozen.get("missing"));
+        Assert.assertFalse(frozen.getBoolean("missing"));
+        // The hierarchy is flattened, so every hit is at the first level
+        Assert.assertEquals(4, metrics.getHits());
+        Assert.assertEquals(4, metrics.getResolutionDepths()[0]);
+        Assert.assertEquals(2, metrics.getMisses());
+        Assert.assertEquals(Long.valueOf(2), metrics.getHitsByKey().get(KEY1));
+
+        // Gets through a child of the frozen config are recorded once, in the metrics of the child
+        Config overlay = new Config(frozen);
+        ConfigMetrics overlayed = overlay.instrument();
+        Assert.assertEquals(VALUE1, overlay.get(KEY2));
+        Assert.assertNull(overlay.get("missing"));
+        Assert.assertEquals(1, overlayed.getHits());
+        Assert.assertEquals(1, overlayed.getMisses());
+    }
+
+    @Test
+    public void register() throws Exception {
+        Config config = new Config();
+        config.put(KEY1, VALUE1);
+        ConfigMetrics metrics = config.instrument();
+        config.get(KEY1);
+        ObjectName name = metrics.register("test");
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            Assert.assertEquals(1L, server.getAttribute(name, "Hits"));
+            Assert.assertEquals(0L, server.getAttribute(name, "Misses"));
+            server.invoke(name, "reset", null, null);
+            Assert.assertEquals(0L, server.getAttribute(name, "Hits"));
+        } finally {
+            ConfigMetrics.unregister(name);
+        }
+    }
+}
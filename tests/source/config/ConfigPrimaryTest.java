@@ -0,0 +1,153 @@
+/*
+ * Copyright 2018 Stuart Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package config;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ConfigPrimaryTest {
+
+    public static final String KEY1 = "key1";
+    public static final String KEY2 = "key2";
+    public static final String VALUE1 = "value1";
+    public static final String VALUE2 = "value2";
+
+    private static InetSocketAddress local() {
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+    }
+
+    @Test
+    public void replicate() throws Exception {
+        Config config = new Config().put(KEY1, VALUE1);
+        try (ConfigPrimary primary = new ConfigPrimary(config, local())) {
+            Config replica = new Config().put("stale", VALUE1);
+            try (ConfigFollower follower = new ConfigFollower(replica, primary.getAddress(), 10)) {
+                Assert.assertSame(replica, follower.getConfig());
+                Assert.assertTrue(follower.await(primary.getVersion(), 10, TimeUnit.SECONDS));
+                Assert.assertEquals(VALUE1, replica.get(KEY1));
+                Assert.assertFalse(replica.has("stale"));
+
+                config.put(KEY2, "h\u00e9llo");
+                config.transaction().put(KEY1, VALUE2).put("a", "1").commit();
+                config.transaction().remove("a").commit();
+                Assert.assertEquals(3, primary.getVersion());
+                Assert.assertTrue(follower.await(3, 10, TimeUnit.SECONDS));
+                Assert.assertEquals(config.getAll(), replica.getAll());
+                Assert.assertEquals(1, follower.snapshots());
+            }
+        }
+    }
+
+    @Test
+    public void followers() throws Exception {
+        Config config = new Config();
+        try (ConfigPrimary primary = new ConfigPrimary(config, local())) {
+            List<ConfigFollower> followers = new ArrayList<>();
+            for (int f = 0; f < 100; f++) {
+                followers.add(new ConfigFollower(new Config(), primary.getAddress(), 10));
+            }
+            for (int i = 0; i < 10000; i++) {
+                config.put("key" + (i % 500), Integer.toString(i));
+            }
+            for (ConfigFollower follower : followers) {
+                Assert.assertTrue(follower.await(primary.getVersion(), 30, TimeUnit.SECONDS));
+                Assert.assertEquals(config.getAll(), follower.getConfig().getAll());
+                follower.close();
+            }
+        }
+    }
+
+    @Test
+    public void catchUp() throws Exception {
+        Config config = new Config().put(KEY1, VALUE1);
+        try (ConfigPrimary primary = new ConfigPrimary(config, local(), 2)) {
+            long epoch;
+            try (Socket socket = connect(primary, 0, 0)) {
+                DataInputStream input = new DataInputStream(socket.getInputStream());
+                Assert.assertEquals(ConfigPrimary.SNAPSHOT, input.readByte());
+                Assert.assertEquals(0, input.readLong());
+                input.readInt();
+                epoch = input.readLong();
+            }
+
+            // The deltas since the version are retained, so only they are sent
+            config.put(KEY1, VALUE2);
+            config.put(KEY2, VALUE2);
+            try (Socket socket = connect(primary, epoch, 0)) {
+                DataInputStream input = new DataInputStream(socket.getInputStream());
+                Assert.assertEquals(ConfigPrimary.DELTA, input.readByte());
+                Assert.assertEquals(2, input.readLong());
+            }
+
+            // Too far behind
+            config.transaction().remove(KEY2).commit();
+            try (Socket socket = connect(primary, epoch, 0)) {
+                DataInputStream input = new DataInputStream(socket.getInputStream());
+                Assert.assertEquals(ConfigPrimary.SNAPSHOT, input.readByte());
+                Assert.assertEquals(3, input.readLong());
+            }
+            try (Socket socket = connect(primary, epoch, 1)) {
+                DataInputStream input = new DataInputStream(socket.getInputStream());
+                Assert.assertEquals(ConfigPrimary.DELTA, input.readByte());
+                Assert.assertEquals(3, input.readLong());
+            }
+        }
+    }
+
+    @Test
+    public void reconnect() throws Exception {
+        Config config = new Config().put(KEY1, VALUE1).put(KEY2, VALUE2);
+        ConfigPrimary primary = new ConfigPrimary(config, local());
+        InetSocketAddress address = primary.getAddress();
+        Config replica = new Config();
+        try (ConfigFollower follower = new ConfigFollower(replica, address, 10)) {
+            Assert.assertTrue(follower.await(0, 10, TimeUnit.SECONDS));
+            Assert.assertEquals(VALUE2, replica.get(KEY2));
+            primary.close();
+
+            // A new primary has a new epoch, so the follower starts again from a snapshot
+            Config restarted = new Config().put(KEY1, VALUE2);
+            try (ConfigPrimary second = new ConfigPrimary(restarted, address)) {
+                restarted.put("other", VALUE1);
+                long deadline = System.currentTimeMillis() + 10000;
+                while (follower.snapshots() < 2 && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(10);
+                }
+                Assert.assertTrue(follower.await(second.getVersion(), 10, TimeUnit.SECONDS));
+                Assert.assertEquals(restarted.getAll(), replica.getAll());
+            }
+        }
+    }
+
+    private static Socket connect(ConfigPrimary primary, long epoch, long version) throws Exception {
+        Socket socket = new Socket(primary.getAddress().getAddress(), primary.getAddress().getPort());
+        DataOutputStream output = new DataOutputStream(socket.getOutputStream());
+        output.writeLong(epoch);
+        output.writeLong(version);
+        output.flush();
+        return socket;
+    }
+}
@@ -19,11 +19,33 @@ package config;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
 import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.junit.Assert;
 import org.junit.Rule;
@@ -55,6 +77,326 @@ public class ConfigTest {
         Assert.assertTrue(config.getAll(KEY1).isEmpty());
     }
 
+    @Test
+    public void putAll() throws Exception {
+        Config parent = new Config();
+        parent.put(KEY1, VALUE1);
+        Config child = new Config(parent);
+        AtomicInteger calls = new AtomicInteger();
+        child.subscribe("", (c, changes) -> calls.incrementAndGet(), Runnable::run);
+        Map<String, String> entries = new HashMap<>();
+        entries.put(KEY1, VALUE2);
+        entries.put(KEY2, QUERY1);
+        child.putAll(entries);
+        Assert.assertEquals(1, calls.get());
+        Assert.assertEquals(VALUE2, child.get(KEY2));
+        Assert.assertEquals(entries, child.getAll(Arrays.asList(KEY1, KEY2, "missing")));
+
+        child.transaction().put("a", "1").put(KEY2, VALUE2).remove(KEY1).remove("a").commit();
+        Assert.assertEquals(2, calls.get());
+        Assert.assertEquals(VALUE1, child.get(KEY1));
+        Assert.assertEquals(VALUE2, child.get(KEY2));
+        Assert.assertFalse(child.has("a"));
+    }
+
+    @Test
+    public void putAllConsistent() throws Exception {
+        final Config config = new Config();
+        config.put("db.host", "host0").put("db.port", "0");
+        final AtomicBoolean done = new AtomicBoolean();
+        Thread writer = new Thread(() -> {
+            for (int i = 1; i <= 2000; i++) {
+                config.transaction().put("db.host", "host" + i).put("db.port", "" + i).commit();
+            }
+            done.set(true);
+        });
+        writer.start();
+        List<String> keys = Arrays.asList("db.host", "db.port");
+        while (!done.get()) {
+            Map<String, String> db = config.getAll(keys);
+            Assert.assertEquals("host" + db.get("db.port"), db.get("db.host"));
+        }
+        writer.join();
+        Assert.assertEquals("host2000", config.get("db.host"));
+    }
+
+    @Test
+    public void fork() throws Exception {
+        Config parent = new Config();
+        parent.put(KEY1, VALUE1);
+        parent.put("db.host", "localhost");
+        parent.put("db.port", "5432");
+        Config config = new Config(parent);
+        config.put(KEY2, "?<db.host>:<db.port>");
+
+        Config fork = config.fork("db.port=6543", "flag", "url=?<db.host>:<db.port>");
+        Assert.assertEquals("localhost:6543", fork.get("url"));
+        // Lookups are actualized where they are defined
+        Assert.assertEquals("localhost:5432", fork.get(KEY2));
+        Assert.assertTrue(fork.getBoolean("flag"));
+        Assert.assertEquals(6543, fork.getInt("db.port", 0));
+        Assert.assertEquals(VALUE1, fork.get(KEY1));
+        Assert.assertFalse(fork.has("missing"));
+        Assert.assertEquals(6, fork.getAll().size());
+        Assert.assertEquals("6543", fork.getAll("db.").get("db.port"));
+
+        // Forks of forks are siblings, sharing their entries
+        Config sibling = fork.fork("db.host=remote");
+        Assert.assertEquals("remote:6543", sibling.get("url"));
+        Assert.assertEquals("localhost:6543", fork.get("url"));
+        Assert.assertEquals("remote:6543", sibling.copy("url", "missing").get("url"));
+        Assert.assertEquals(1, sibling.copy("url", "missing").getAll().size());
+
+        // Forks see changes to the config they were forked from
+        config.put("db.host", "changed");
+        Assert.assertEquals("changed:6543", fork.get("url"));
+
+        try {
+            fork.put(KEY1, VALUE2);
+            Assert.fail("Expected UnsupportedOperationException");
+        } catch (UnsupportedOperationException e) {
+            // Expected
+        }
+
+        // Forks keep their entries to themselves, and see writes to the config beneath them
+        Assert.assertFalse(config.has("flag"));
+        Assert.assertEquals("5432", config.get("db.port"));
+        Assert.assertFalse(fork.has("db.name"));
+        config.put("db.name", "test");
+        config.put("db.port", "1234");
+        Assert.assertTrue(fork.has("db.name"));
+        Assert.assertEquals("test", fork.get("db.name"));
+        Assert.assertEquals("6543", fork.get("db.port"));
+        Assert.assertEquals(7, fork.getAll().size());
+        Assert.assertEquals("6543", fork.getAll("db.").get("db.port"));
+        Assert.assertEquals("changed", fork.getAll("db.").get("db.host"));
+        config.transaction().remove("db.name").commit();
+        Assert.assertFalse(fork.has("db.name"));
+        Assert.assertNull(fork.get("db.name"));
+        Assert.assertEquals(6, fork.getAll().size());
+    }
+
+    @Test
+    public void stream() throws Exception {
+        Config parent = new Config();
+        parent.put(KEY1, VALUE1);
+        parent.put("db.host", "localhost");
+        parent.put("db.port", "5432");
+        Config child = new Config(parent);
+        child.put("db.port", "6543");
+        child.put(KEY2, VALUE2);
+
+        Map<String, String> all = new HashMap<>();
+        child.stream().forEach(e -> Assert.assertNull(all.put(e.getKey(), e.getValue())));
+        Assert.assertEquals(child.getAll(), all);
+        Assert.assertEquals(4, all.size());
+        Assert.assertEquals(2, child.stream("db.").count());
+        Assert.assertTrue(child.stream("db.").anyMatch(e -> e.getValue().equals("6543")));
+        Assert.assertFalse(child.stream("db.").anyMatch(e -> e.getValue().equals("5432")));
+        Assert.assertEquals(0, child.stream("missing").count());
+
+        Assert.assertEquals(1, child.stream().limit(1).count());
+        Assert.assertTrue(child.list().contains("db.port=6543"));
+        Assert.assertEquals(4, child.list().size());
+
+        // Writing lines never holds up changes, even those made by the output itself on another thread
+        final AtomicBoolean changed = new AtomicBoolean();
+        child.writeAllLines(new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                Thread writer = new Thread(() -> parent.put(KEY1, VALUE2));
+                writer.start();
+                try {
+                    writer.join(10000);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                changed.set(!writer.isAlive());
+            }
+        });
+        Assert.assertTrue(changed.get());
+        Assert.assertEquals(VALUE2, child.get(KEY1));
+    }
+
+    @Test
+    public void hasFiltered() throws Exception {
+        Config root = new Config();
+        Config middle = new Config(root);
+        Config leaf = new Config(middle);
+        Assert.assertFalse(leaf.has(KEY1));
+        // Parents changed after their children are created
+        for (int i = 0; i < 1000; i++) {
+            root.put(KEY1 + i, VALUE1);
+        }
+        middle.put(KEY2, VALUE2);
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertTrue(leaf.has(KEY1 + i));
+            Assert.assertFalse(leaf.has(KEY2 + i));
+        }
+        Assert.assertTrue(leaf.has(KEY2));
+        Assert.assertTrue(root.has(KEY1 + 999));
+        Assert.assertFalse(root.has(KEY2));
+
+        root.transaction().remove(KEY1 + 0).commit();
+        Assert.assertFalse(leaf.has(KEY1 + 0));
+        root.put(KEY1 + 0, VALUE2);
+        Assert.assertEquals(VALUE2, leaf.get(KEY1 + 0));
+        Assert.assertEquals(1001, leaf.stream().count());
+
+        // Keys held by siblings, or by levels which do not filter their keys
+        Config sibling = new Config(middle);
+        for (int i = 0; i < 200; i++) {
+            sibling.put(KEY2 + i, VALUE2);
+        }
+        for (int i = 0; i < 200; i++) {
+            Assert.assertTrue(sibling.has(KEY2 + i));
+            Assert.assertFalse(leaf.has(KEY2 + i));
+        }
+        Config below = new Config(leaf.fork(KEY2 + "forked=" + VALUE1));
+        Assert.assertTrue(below.has(KEY2 + "forked"));
+        Assert.assertFalse(leaf.has(KEY2 + "forked"));
+        below.put(KEY2 + "below", VALUE1);
+        Assert.assertTrue(below.has(KEY2 + "below"));
+        Assert.assertTrue(below.has(KEY1 + 999));
+    }
+
+    @Test
+    public void diff() throws Exception {
+        Config parent = new Config().put(KEY1, VALUE1).put("shared", VALUE1).put("shadowed", VALUE1);
+        Config before = new Config(parent).put(KEY2, VALUE1).put("removed", VALUE1).put("same", VALUE1);
+        Config after = new Config(parent).put(KEY2, VALUE2).put("added", VALUE2).put("same", VALUE1).put("shadowed", VALUE2);
+        ConfigDiff diff = before.diff(after);
+        Assert.assertEquals(1, diff.getAdded().size());
+        Assert.assertEquals(VALUE2, diff.getAdded().get("added"));
+        Assert.assertEquals(2, diff.getChanged().size());
+        Assert.assertEquals(VALUE2, diff.getChanged().get(KEY2));
+        Assert.assertEquals(VALUE2, diff.getChanged().get("shadowed"));
+        Assert.assertEquals(VALUE1, diff.getRemoved().get("removed"));
+        Assert.assertEquals(1, diff.getRemoved().size());
+        Assert.assertTrue(before.diff(before).isEmpty());
+        Assert.assertTrue(after.diff(before.apply(diff)).isEmpty());
+        Assert.assertEquals(after.getAll(), before.getAll());
+
+        // Separately loaded hierarchies with the same parent entries, and a child of one against the other
+        Config copy = new Config().putAll(parent.getAll());
+        Assert.assertEquals(parent.digest(), copy.digest());
+        Config reloaded = new Config(copy).put(KEY2, VALUE1);
+        diff = reloaded.diff(after);
+        Assert.assertEquals(VALUE2, diff.getChanged().get(KEY2));
+        Assert.assertEquals(VALUE2, diff.getChanged().get("shadowed"));
+        Assert.assertEquals(2, diff.getChanged().size());
+        Assert.assertEquals(VALUE2, diff.getAdded().get("added"));
+        Assert.assertEquals(VALUE1, diff.getAdded().get("same"));
+        Assert.assertTrue(diff.getRemoved().isEmpty());
+        diff = parent.diff(new Config(parent).put(KEY1, VALUE2));
+        Assert.assertEquals(1, diff.getChanged().size());
+        Assert.assertEquals(VALUE2, diff.getChanged().get(KEY1));
+    }
+
+    @Test
+    public void diffConcurrent() throws Exception {
+        final Config a = new Config();
+        final Config b = new Config();
+        for (int i = 0; i < 1000; i++) {
+            a.put(KEY1 + i, VALUE1);
+            b.put(KEY1 + i, VALUE2);
+        }
+        final AtomicBoolean done = new AtomicBoolean();
+        List<Thread> threads = new ArrayList<>();
+        for (final Config c : Arrays.asList(a, b)) {
+            // Changes so frequent that diffs fall back to taking the locks
+            threads.add(new Thread(() -> {
+                for (int i = 0; !done.get(); i++) {
+                    c.put(KEY2, VALUE1 + i);
+                }
+            }));
+        }
+        List<Thread> diffs = new ArrayList<>();
+        for (final Config[] pair : new Config[][] { { a, b }, { b, a } }) {
+            diffs.add(new Thread(() -> {
+                for (int i = 0; i < 200; i++) {
+                    Assert.assertEquals(1000, pair[0].diff(pair[1]).getChanged().size(), 1);
+                }
+            }));
+        }
+        threads.addAll(diffs);
+        for (Thread t : threads) {
+            t.setDaemon(true);
+            t.start();
+        }
+        for (Thread t : diffs) {
+            t.join(30000);
+            Assert.assertFalse("Diffs in opposite directions deadlocked", t.isAlive());
+        }
+        done.set(true);
+    }
+
+    @Test
+    public void digest() throws Exception {
+        Config config = new Config().put(KEY1, VALUE2).put(KEY2, VALUE2);
+        config.put(KEY1, VALUE1);
+        config.transaction().remove(KEY2).put("a", "1").commit();
+        config.transaction().remove("a").remove("missing").commit();
+        Config expected = new Config().put(KEY1, VALUE1);
+        Assert.assertEquals(expected.digest(), config.digest());
+        Assert.assertEquals(expected.digest(), config.freeze().digest());
+        Assert.assertEquals(expected.digest(), new Config().fork(KEY1 + "=" + VALUE1).digest());
+        Assert.assertEquals(expected.digest(), new CompactConfig().put(KEY1, VALUE1).digest());
+        Assert.assertNotEquals(expected.digest(), new Config().put(KEY1, VALUE2).digest());
+        Assert.assertNotEquals(new Config().put("ab", "c").digest(), new Config().put("a", "bc").digest());
+        Assert.assertEquals(0, new Config().digest());
+    }
+
+    @Test
+    public void resolutionsCached() throws Exception {
+        Config root = new Config().put(KEY1, VALUE1);
+        Config s1 = new Config(new Config(root));
+        Config s2 = new Config(root);
+        Config.Resolution resolution = s1.resolve(KEY1);
+        Assert.assertEquals(2, resolution.depth);
+        Assert.assertSame(resolution, s1.resolve(KEY1));
+
+        // Changes to configs the key was not resolved through leave the resolution cached
+        s2.put(KEY1, VALUE2);
+        s2.put(KEY2, VALUE2);
+        Assert.assertSame(resolution, s1.resolve(KEY1));
+
+        // Changes to those it was resolved through do not
+        root.put(KEY2, VALUE2);
+        Config.Resolution changed = s1.resolve(KEY1);
+        Assert.assertNotSame(resolution, changed);
+        Assert.assertSame(changed, s1.resolve(KEY1));
+        s1.put(KEY1, VALUE2);
+        Assert.assertEquals(0, s1.resolve(KEY1).depth);
+        Assert.assertEquals(VALUE2, s1.get(KEY1));
+    }
+
+    @Test
+    public void getAllPrefix() throws Exception {
+        Config parent = new Config();
+        parent.put("db.shard.1", "a");
+        parent.put("db.shard.2", "b");
+        parent.put("db.shardless", "c");
+        parent.put("db.host", "d");
+        Config child = new Config(parent);
+        child.put("db.shard.2", "e");
+        child.put("db.shard.3", "f");
+        child.put("dc", "g");
+        Map<String, String> entries = child.getAll("db.shard.");
+        Assert.assertEquals(3, entries.size());
+        Assert.assertEquals("a", entries.get("db.shard.1"));
+        Assert.assertEquals("e", entries.get("db.shard.2"));
+        Assert.assertEquals("f", entries.get("db.shard.3"));
+        Assert.assertEquals(6, child.getAll("d").size());
+        Assert.assertEquals(2, parent.getAll("db.shard.").size());
+        Assert.assertEquals(child.getAll(), child.getAll(""));
+    }
+
     @Test
     public void put() throws Exception {
         Config config = new Config();
@@ -104,6 +446,113 @@ public class ConfigTest {
         Assert.assertEquals(VALUE2, configB.get(KEY2));
     }
 
+    @Test
+    public void filesLarge() throws Exception {
+        File file = folder.newFile("large");
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            sb.append(KEY1).append(i).append('=').append(VALUE1).append(i).append(i % 2 == 0 ? "\n" : "\r\n");
+        }
+        sb.append("\n");
+        sb.append("unicode=h\u00e9llo \u4e16\u754c\n");
+        sb.append("flag\r\n");
+        sb.append(KEY2).append('=');
+        for (int i = 0; i < 100000; i++) {
+            sb.append('v');
+        }
+        OutputStream out = new FileOutputStream(file);
+        out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+        out.close();
+        Config config = Config.create(file);
+        Assert.assertEquals(VALUE1 + 0, config.get(KEY1 + 0));
+        Assert.assertEquals(VALUE1 + 1, config.get(KEY1 + 1));
+        Assert.assertEquals(VALUE1 + 19999, config.get(KEY1 + 19999));
+        Assert.assertEquals("h\u00e9llo \u4e16\u754c", config.get("unicode"));
+        Assert.assertTrue(config.getBoolean("flag"));
+        Assert.assertEquals(100000, config.get(KEY2).length());
+        Assert.assertEquals(20003, config.getAll().size());
+    }
+
+    @Test
+    public void filesParallel() throws Exception {
+        File[] files = new File[8];
+        for (int f = 0; f < files.length; f++) {
+            files[f] = folder.newFile("layer" + f);
+            PrintWriter out = new PrintWriter(files[f]);
+            for (int i = 0; i < 1000; i++) {
+                // Each layer overrides the lower half of the keys in the layer before it
+                out.write(KEY1 + (i + f * 500) + "=" + VALUE1 + f + "\n");
+            }
+            out.close();
+        }
+        Config parallel = Config.create(new String[] { KEY2 + "=" + VALUE2 }, files);
+        Assert.assertEquals(VALUE2, parallel.get(KEY2));
+        Assert.assertEquals(VALUE1 + 0, parallel.get(KEY1 + 0));
+        Assert.assertEquals(VALUE1 + 1, parallel.get(KEY1 + 999));
+        Assert.assertEquals(VALUE1 + 7, parallel.get(KEY1 + 3500));
+        Assert.assertEquals(VALUE1 + 7, parallel.get(KEY1 + 4499));
+
+        Config sequential = new Config().put(KEY2, VALUE2);
+        for (File file : files) {
+            sequential.readAllLines(file);
+        }
+        Assert.assertEquals(sequential.getAll(), parallel.getAll());
+
+        AtomicInteger calls = new AtomicInteger();
+        Config config = new Config();
+        config.subscribe("", (c, changes) -> calls.incrementAndGet(), Runnable::run);
+        config.readAllLines(files[0], new File(folder.getRoot(), "missing"), files[1]);
+        Assert.assertEquals(1, calls.get());
+        Assert.assertEquals(VALUE1 + 1, config.get(KEY1 + 500));
+
+        // Files are read on threads of their own, and so are read even while the common pool is busy
+        CountDownLatch release = new CountDownLatch(1);
+        for (int t = 0; t < ForkJoinPool.commonPool().getParallelism(); t++) {
+            ForkJoinPool.commonPool().execute(() -> {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    /* ignored */
+                }
+            });
+        }
+        try {
+            Assert.assertEquals(parallel.getAll(), new Config().put(KEY2, VALUE2).readAllLines(files).getAll());
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void filesReplaced() throws Exception {
+        Config config = new Config();
+        for (int i = 0; i < 20000; i++) {
+            config.put(KEY1 + i, VALUE1 + i);
+        }
+        config.put("unicode", "h\u00e9llo \u4e16\u754c \ud83d\ude00");
+        File file = folder.newFile("replaced");
+        PrintWriter out = new PrintWriter(file);
+        out.write(KEY2 + "=" + VALUE2 + "\n");
+        out.close();
+        config.writeAllLines(file);
+        Config copy = Config.create(file);
+        Assert.assertEquals(config.getAll(), copy.getAll());
+        Assert.assertFalse(copy.has(KEY2));
+        // Only the target remains, no temporary files
+        Assert.assertEquals(1, file.getParentFile().list().length);
+
+        // Links are written through, as when a mounted config links to the current version of the file
+        File versions = folder.newFolder("versions");
+        File target = new File(versions, "current");
+        new Config().put(KEY2, VALUE2).writeAllLines(target);
+        File link = new File(folder.getRoot(), "link");
+        Files.createSymbolicLink(link.toPath(), target.toPath());
+        config.writeAllLines(link);
+        Assert.assertTrue(Files.isSymbolicLink(link.toPath()));
+        Assert.assertEquals(config.getAll(), Config.create(target).getAll());
+        Assert.assertEquals(1, versions.list().length);
+    }
+
     @Test
     public void hierarchy() throws Exception {
         Config parent = new Config();
@@ -116,6 +565,176 @@ public class ConfigTest {
         Assert.assertEquals(VALUE2, child.get(KEY2));
     }
 
+    @Test
+    public void deepHierarchy() throws Exception {
+        Config root = new Config();
+        root.put(KEY1, VALUE1);
+        Config middle = root;
+        for (int i = 0; i < 4; i++) {
+            middle = new Config(middle);
+        }
+        Config leaf = middle;
+        for (int i = 0; i < 4; i++) {
+            leaf = new Config(leaf);
+        }
+        Assert.assertEquals(VALUE1, leaf.get(KEY1));
+        Assert.assertFalse(leaf.has(KEY2));
+        // Changes anywhere in the hierarchy must be seen by the leaf
+        middle.put(KEY1, VALUE2);
+        Assert.assertEquals(VALUE2, leaf.get(KEY1));
+        Assert.assertEquals(VALUE1, root.get(KEY1));
+        root.put(KEY2, VALUE2);
+        Assert.assertTrue(leaf.has(KEY2));
+        Assert.assertEquals(VALUE2, leaf.get(KEY2));
+        leaf.put(KEY1, VALUE1);
+        Assert.assertEquals(VALUE1, leaf.get(KEY1));
+        Assert.assertEquals(VALUE2, middle.get(KEY1));
+    }
+
+    @Test
+    public void freeze() throws Exception {
+        Config parent = new Config();
+        parent.put(KEY1, VALUE1);
+        parent.put("number", "12.5");
+        parent.put("db.host", "a");
+        Config child = new Config(parent);
+        child.put(KEY2, VALUE2);
+        child.put("flag");
+        child.put("query", QUERY1);
+        child.put("db.port", "80");
+        Config frozen = child.freeze();
+        parent.put(KEY1, VALUE2);
+        Assert.assertEquals(VALUE1, frozen.get(KEY1));
+        Assert.assertEquals(VALUE2, frozen.get(KEY2));
+        Assert.assertEquals(VALUE1, frozen.get("query"));
+        Assert.assertNull(frozen.get("missing"));
+        Assert.assertTrue(frozen.has(KEY1));
+        Assert.assertFalse(frozen.has("missing"));
+        Assert.assertTrue(frozen.getBoolean("flag"));
+        Assert.assertTrue(frozen.hasBoolean("flag"));
+        Assert.assertEquals(12.5, frozen.getNumber("number"), 0.0);
+        Assert.assertEquals(80, frozen.getInt("db.port", -1));
+        Assert.assertEquals(2, frozen.getAll("db.").size());
+        Assert.assertEquals(QUERY1, frozen.getAll().get("query"));
+        Assert.assertEquals(7, frozen.getAll().size());
+        Assert.assertEquals("Hello " + VALUE1, frozen.lookup("?Hello " + QUERY1.substring(1)));
+        try {
+            frozen.put(KEY1, VALUE2);
+            Assert.fail("Expected frozen config to reject put");
+        } catch (UnsupportedOperationException e) {
+            // Expected
+        }
+        // Frozen configs can be the parent of live configs
+        Config overlay = new Config(frozen);
+        overlay.put(KEY1, VALUE2);
+        Assert.assertEquals(VALUE2, overlay.get(KEY1));
+        Assert.assertEquals(VALUE2, overlay.get(KEY2));
+        Assert.assertTrue(overlay.has("flag"));
+        Assert.assertEquals(VALUE2, overlay.getAll().get(KEY1));
+        Assert.assertEquals(2, overlay.getAll("db.").size());
+
+        // Freezing never asks the streams, leaving lookups of missing keys unresolved
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Config streamed = new Config(null, new ByteArrayInputStream((VALUE1 + "\n").getBytes()), out);
+        streamed.put("url", "?<db.host>:<db.port>");
+        streamed.put("db.port", "80");
+        frozen = new Config(streamed).freeze();
+        Assert.assertEquals("?<db.host>:80", frozen.get("url"));
+        Assert.assertEquals(0, out.size());
+    }
+
+    @Test
+    public void subscribe() throws Exception {
+        final List<Runnable> tasks = new ArrayList<>();
+        final List<Map<String, String>> batches = new ArrayList<>();
+        ConfigListener listener = new ConfigListener() {
+            @Override
+            public void changed(Config config, Map<String, String> changes) {
+                batches.add(changes);
+            }
+        };
+        Config parent = new Config();
+        Config child = new Config(parent);
+        child.subscribe("db.", listener, new Executor() {
+            @Override
+            public void execute(Runnable task) {
+                tasks.add(task);
+            }
+        });
+        parent.put("db.host", VALUE1);
+        parent.put("other", VALUE1);
+        child.put("db.port", "80");
+        child.put("db.port", "80");
+        Assert.assertEquals(1, tasks.size());
+        tasks.remove(0).run();
+        Assert.assertEquals(1, batches.size());
+        Assert.assertEquals(2, batches.get(0).size());
+        Assert.assertEquals(VALUE1, batches.get(0).get("db.host"));
+        Assert.assertEquals("80", batches.get(0).get("db.port"));
+
+        // Shadowed changes are not effective
+        child.put("db.host", VALUE2);
+        parent.put("db.host", VALUE1 + VALUE2);
+        tasks.remove(0).run();
+        Assert.assertEquals(2, batches.size());
+        Assert.assertEquals(1, batches.get(1).size());
+        Assert.assertEquals(VALUE2, batches.get(1).get("db.host"));
+        Assert.assertTrue(tasks.isEmpty());
+
+        // A whole file is a single batch
+        File file = folder.newFile("subscribe");
+        PrintWriter out = new PrintWriter(file);
+        for (int i = 0; i < 1000; i++) {
+            out.write("db.shard." + i + "=" + i + "\n");
+        }
+        out.close();
+        child.readAllLines(file);
+        Assert.assertEquals(1, tasks.size());
+        tasks.remove(0).run();
+        Assert.assertEquals(3, batches.size());
+        Assert.assertEquals(1000, batches.get(2).size());
+
+        child.unsubscribe(listener);
+        child.put("db.port", "8080");
+        Assert.assertTrue(tasks.isEmpty());
+    }
+
+    @Test
+    public void subscribeConcurrent() throws Exception {
+        final Config config = new Config();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        ExecutorService writers = Executors.newFixedThreadPool(8);
+        List<AtomicReference<String>> lasts = new ArrayList<>();
+        for (int s = 0; s < 50; s++) {
+            final AtomicReference<String> last = new AtomicReference<>();
+            lasts.add(last);
+            // Alternate between a single thread, and the common pool where runs could otherwise overlap
+            config.subscribe("", (c, changes) -> last.set(changes.get("k")), s % 2 == 0 ? executor : ForkJoinPool.commonPool());
+        }
+        try {
+            for (int round = 0; round < 200; round++) {
+                List<Callable<Object>> puts = new ArrayList<>();
+                for (int w = 0; w < 8; w++) {
+                    final String value = round + ":" + w;
+                    puts.add(() -> config.put("k", value));
+                }
+                writers.invokeAll(puts);
+                // Every subscriber must end on the value of the last change
+                String expected = config.get("k");
+                long deadline = System.currentTimeMillis() + 10000;
+                for (AtomicReference<String> last : lasts) {
+                    while (!expected.equals(last.get()) && System.currentTimeMillis() < deadline) {
+                        Thread.sleep(1);
+                    }
+                    Assert.assertEquals(expected, last.get());
+                }
+            }
+        } finally {
+            writers.shutdown();
+            executor.shutdown();
+        }
+    }
+
     @Test
     public void streams() throws Exception {
         // Give 1 & 2
@@ -140,6 +759,50 @@ public class ConfigTest {
         Assert.assertEquals(VALUE1, config.get(KEY1));// Should have remembered instead of asking stream
     }
 
+    @Test
+    public void streamsAsync() throws Exception {
+        PipedOutputStream answers = new PipedOutputStream();
+        PipedInputStream in = new PipedInputStream(answers);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Config parent = new Config(null, in, out);
+        parent.put(KEY2, VALUE2);
+        parent.put("save");
+        Config config = new Config(parent);
+
+        // Available values complete immediately
+        Assert.assertEquals(VALUE2, config.getAsync(KEY2).getNow(null));
+
+        CompletableFuture<String> first = config.getAsync(KEY1);
+        CompletableFuture<String> second = new Config(parent).getAsync(KEY1);
+        Assert.assertFalse(first.isDone());
+
+        // Lookups which actualize without prompting do not wait behind the pending prompt
+        parent.put("url", "?<" + KEY2 + ">:80");
+        Assert.assertEquals(VALUE2 + ":80", config.getAsync("url").getNow(null));
+
+        answers.write((VALUE1 + "\n").getBytes());
+        answers.flush();
+        Assert.assertEquals(VALUE1, first.get(10, TimeUnit.SECONDS));
+        Assert.assertEquals(VALUE1, second.get(10, TimeUnit.SECONDS));
+        Assert.assertEquals("Config: " + KEY1 + "?\n", new String(out.toByteArray()));// Should have asked once
+
+        // Should have been saved by the root
+        Assert.assertEquals(VALUE1, config.getAsync(KEY1).getNow(null));
+        Assert.assertEquals(VALUE1, parent.get(KEY1));
+
+        // Without save, gets of the same key waiting at the same time still share a single prompt
+        out.reset();
+        parent.put("save", "false");
+        first = config.getAsync(KEY2 + "missing");
+        second = new Config(parent).getAsync(KEY2 + "missing");
+        answers.write((VALUE2 + "\n").getBytes());
+        answers.flush();
+        Assert.assertEquals(VALUE2, first.get(10, TimeUnit.SECONDS));
+        Assert.assertEquals(VALUE2, second.get(10, TimeUnit.SECONDS));
+        Assert.assertEquals("Config: " + KEY2 + "missing?\n", new String(out.toByteArray()));
+        Assert.assertFalse(parent.has(KEY2 + "missing"));
+    }
+
     @Test
     public void hasBoolean() throws Exception {
         Config config = new Config();
@@ -188,6 +851,30 @@ public class ConfigTest {
         Assert.assertEquals(.456, config.getNumber(KEY2), 0.0);
     }
 
+    @Test
+    public void getPrimitives() throws Exception {
+        Config parent = new Config();
+        parent.put(KEY1, "42");
+        Config config = new Config(parent);
+        config.put(KEY2, "4.5");
+        config.put("big", "12345678901");
+        config.put("query", QUERY1);
+        Assert.assertEquals(42, config.getInt(KEY1, -1));
+        Assert.assertEquals(42L, config.getLong(KEY1, -1L));
+        Assert.assertEquals(42.0, config.getDouble(KEY1, -1.0), 0.0);
+        Assert.assertEquals(-1, config.getInt(KEY2, -1));
+        Assert.assertEquals(4.5, config.getDouble(KEY2, -1.0), 0.0);
+        Assert.assertEquals(-1, config.getInt("big", -1));
+        Assert.assertEquals(12345678901L, config.getLong("big", -1L));
+        Assert.assertEquals(42, config.getInt("query", -1));
+        Assert.assertEquals(-1, config.getInt("missing", -1));
+        Assert.assertEquals(-1.0, config.getDouble(VALUE1, -1.0), 0.0);
+        // Parsed values must not outlive a put
+        parent.put(KEY1, "7");
+        Assert.assertEquals(7, config.getInt(KEY1, -1));
+        Assert.assertEquals(7, config.getInt("query", -1));
+    }
+
     @Test
     public void lookup() throws Exception {
         Config parent = new Config();
@@ -198,4 +885,29 @@ public class ConfigTest {
         Assert.assertEquals(VALUE1, config.get("Q1"));
         Assert.assertEquals(QUERY2, config.get("Q2"));
     }
+
+    @Test
+    public void lookupMany() throws Exception {
+        Config config = new Config();
+        config.put(KEY1, VALUE1);
+        config.put(KEY2, VALUE2);
+        config.put("Q", "?" + QUERY1.substring(1) + "-" + QUERY2.substring(1) + "-<missing>-" + QUERY1.substring(1));
+        Assert.assertEquals("?" + VALUE1 + "-" + VALUE2 + "-<missing>-" + VALUE1, config.get("Q"));
+        config.put("missing", "found");
+        Assert.assertEquals(VALUE1 + "-" + VALUE2 + "-found-" + VALUE1, config.get("Q"));
+        Assert.assertEquals("Hello " + VALUE1, config.lookup("?Hello " + QUERY1.substring(1)));
+        Assert.assertEquals("?a>b<c>", config.lookup("?a>b<c>"));
+    }
+
+    @Test
+    public void lookupCycle() throws Exception {
+        Config config = new Config();
+        config.put(KEY1, QUERY2);
+        config.put(KEY2, QUERY1);
+        // Each key is left unresolved where the cycle closes, within the lookup of the other
+        Assert.assertEquals("?" + QUERY1, config.get(KEY1));
+        Assert.assertEquals("?" + QUERY2, config.get(KEY2));
+        config.put(KEY1, QUERY1);
+        Assert.assertEquals(QUERY1, config.get(KEY1));
+    }
 }
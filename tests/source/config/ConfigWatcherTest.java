@@ -0,0 +1,149 @@
+/*
+ * Copyright 2018 Stuart Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package config;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ConfigWatcherTest {
+
+    public static final String KEY1 = "key1";
+    public static final String KEY2 = "key2";
+    public static final String VALUE1 = "value1";
+    public static final String VALUE2 = "value2";
+    public static final String VALUE3 = "value3";
+
+    public static final long TIMEOUT = 10000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void reload() throws Exception {
+        File fileA = folder.newFile("testA");
+        write(fileA, KEY1 + "=" + VALUE1, KEY2 + "=" + VALUE1);
+        File fileB = folder.newFile("testB");
+        write(fileB, KEY2 + "=" + VALUE2);
+        String[] args = {
+            "arg=" + VALUE1,
+            KEY1 + "=" + VALUE3
+        };
+        try (ConfigWatcher watcher = new ConfigWatcher(new Config(), args, new File[] {fileA, fileB}, 10)) {
+            Config config = watcher.getConfig();
+            Assert.assertEquals(VALUE1, config.get("arg"));
+            Assert.assertEquals(VALUE1, config.get(KEY1));
+            Assert.assertEquals(VALUE2, config.get(KEY2));
+
+            // Files override args, and later files override earlier files
+            write(fileA, KEY2 + "=" + VALUE3, "arg=" + VALUE2);
+            await(config, "arg", VALUE2);
+            Assert.assertEquals(VALUE3, config.get(KEY1));
+            Assert.assertEquals(VALUE2, config.get(KEY2));
+
+            // Removing a key reveals the earlier value
+            write(fileB, "other=" + VALUE1);
+            await(config, KEY2, VALUE3);
+            Assert.assertEquals(VALUE1, config.get("other"));
+
+            // Replacing a file is seen as a change
+            Config replacement = new Config();
+            replacement.put("replaced", VALUE1);
+            replacement.writeAllLines(fileB);
+            await(config, "replaced", VALUE1);
+            Assert.assertFalse(config.has("other"));
+        }
+    }
+
+    @Test
+    public void precedence() throws Exception {
+        File file = folder.newFile("test");
+        write(file, KEY1 + "=" + VALUE1, KEY2 + "=" + VALUE1);
+        try (ConfigWatcher watcher = new ConfigWatcher(new Config(), null, new File[] {file}, 10)) {
+            Config config = watcher.getConfig();
+            config.put(KEY1, VALUE2);
+            config.put("runtime", VALUE2);
+
+            // Runtime puts to keys which the reload does not change are kept
+            write(file, KEY1 + "=" + VALUE1, KEY2 + "=" + VALUE2);
+            await(config, KEY2, VALUE2);
+            Assert.assertEquals(VALUE2, config.get(KEY1));
+            Assert.assertEquals(VALUE2, config.get("runtime"));
+
+            // The file wins for keys which the reload changes
+            write(file, KEY1 + "=" + VALUE3, KEY2 + "=" + VALUE2);
+            await(config, KEY1, VALUE3);
+            Assert.assertEquals(VALUE2, config.get("runtime"));
+        }
+    }
+
+    @Test
+    public void failures() throws Exception {
+        File file = folder.newFile("test");
+        write(file, KEY1 + "=" + VALUE1);
+        AtomicBoolean failing = new AtomicBoolean();
+        Config config = new Config() {
+            @Override
+            void apply(Map<String, String> puts, Collection<String> removes) {
+                if (failing.get()) {
+                    throw new IllegalStateException("Unavailable");
+                }
+                super.apply(puts, removes);
+            }
+        };
+        LinkedBlockingQueue<Exception> errors = new LinkedBlockingQueue<>();
+        try (ConfigWatcher watcher = new ConfigWatcher(config, null, new File[] {file}, 10, errors::add)) {
+            failing.set(true);
+            write(file, KEY1 + "=" + VALUE2);
+            Exception e = errors.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+            Assert.assertTrue(e instanceof IllegalStateException);
+            Assert.assertEquals(VALUE1, config.get(KEY1));
+
+            // The watcher keeps running, and the next reload also applies what failed
+            failing.set(false);
+            write(file, KEY1 + "=" + VALUE2, KEY2 + "=" + VALUE2);
+            await(config, KEY2, VALUE2);
+            Assert.assertEquals(VALUE2, config.get(KEY1));
+        }
+    }
+
+    private static void write(File file, String... lines) throws Exception {
+        PrintWriter out = new PrintWriter(file);
+        for (String line : lines) {
+            out.write(line + "\n");
+        }
+        out.flush();
+        out.close();
+    }
+
+    private static void await(Config config, String key, String value) throws Exception {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (!value.equals(config.get(key)) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(value, config.get(key));
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2018 Stuart Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class LazyConfigTest {
+
+    public static final String KEY1 = "key1";
+    public static final String KEY2 = "key2";
+    public static final String VALUE1 = "value1";
+    public static final String VALUE2 = "value2";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File write(String text) throws Exception {
+        File file = folder.newFile();
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(text.getBytes(StandardCharsets.UTF_8));
+        }
+        return file;
+    }
+
+    @Test
+    public void open() throws Exception {
+        File file = write(KEY1 + "=" + VALUE1 + "\n"
+                + KEY2 + "=" + VALUE2 + "\r\n"
+                + "\n"
+                + "=ignored\n"
+                + "flag\r\n"
+                + "unicode=h\u00e9llo \u4e16\u754c\n"
+                + "query=?<" + KEY1 + ">\n"
+                + "empty=\n"
+                + KEY1 + "=" + VALUE2 + "\n"
+                + "db.a=1\n"
+                + "db.b=2\n"
+                + "last");
+        LazyConfig config = LazyConfig.open(file);
+        Assert.assertEquals(9, config.size());
+        Assert.assertEquals(new Config().readAllLines(file).getAll(), config.getAll());
+        Assert.assertEquals(VALUE2, config.get(KEY1));
+        Assert.assertEquals(VALUE2, config.get(KEY2));
+        Assert.assertTrue(config.getBoolean("flag"));
+        Assert.assertTrue(config.getBoolean("last"));
+        Assert.assertEquals("h\u00e9llo \u4e16\u754c", config.get("unicode"));
+        Assert.assertEquals(VALUE2, config.get("query"));
+        Assert.assertEquals("", config.get("empty"));
+        Assert.assertNull(config.get("missing"));
+        Assert.assertNull(config.get(""));
+        Assert.assertEquals(2, config.getAll("db.").size());
+
+        // Lazy configs can be the parent of live configs
+        Config child = new Config(config);
+        child.put(KEY1, VALUE1);
+        Assert.assertEquals(VALUE1, child.get(KEY1));
+        Assert.assertEquals(VALUE2, child.get("query"));
+        Assert.assertEquals("2", child.get("db.b"));
+        Assert.assertTrue(config.diff(new Config().readAllLines(file)).isEmpty());
+    }
+
+    @Test
+    public void large() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            sb.append("section").append(i % 100).append(".key").append(i % 50000).append('=').append(i).append('\n');
+        }
+        File file = write(sb.toString());
+        LazyConfig config = LazyConfig.open(file);
+        Assert.assertEquals(50000, config.size());
+        Assert.assertEquals("50042", config.get("section42.key42"));
+        Assert.assertEquals("99999", config.get("section99.key49999"));
+        Assert.assertNull(config.get("section42.key43"));
+        Assert.assertEquals(new Config().readAllLines(file).getAll(), config.getAll());
+    }
+
+    @Test
+    public void empty() throws Exception {
+        LazyConfig config = LazyConfig.open(write(""));
+        Assert.assertEquals(0, config.size());
+        Assert.assertTrue(config.getAll().isEmpty());
+        Assert.assertNull(config.get(KEY1));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void readOnly() throws Exception {
+        LazyConfig.open(write(KEY1 + "=" + VALUE1)).put(KEY1, VALUE2);
+    }
+}
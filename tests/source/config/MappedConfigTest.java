@@ -0,0 +1,208 @@
+/*
+ * Copyright 2018 Stuart Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MappedConfigTest {
+
+    public static final String KEY1 = "key1";
+    public static final String KEY2 = "key2";
+    public static final String VALUE1 = "value1";
+    public static final String VALUE2 = "value2";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void put() throws Exception {
+        File file = new File(folder.getRoot(), "mapped");
+        MappedConfig config = MappedConfig.open(file);
+        config.put(KEY1, VALUE1);
+        config.put("unicode", "h\u00e9llo \u4e16\u754c");
+        config.put("query", "?<" + KEY1 + ">");
+        config.put("flag");
+        config.put("", VALUE2);
+        Assert.assertEquals(4, config.size());
+        Assert.assertTrue(config.has(KEY1));
+        Assert.assertFalse(config.has(KEY2));
+        Assert.assertEquals(VALUE1, config.get("query"));
+        Assert.assertEquals("h\u00e9llo \u4e16\u754c", config.get("unicode"));
+        Assert.assertTrue(config.getBoolean("flag"));
+
+        config.put(KEY1, VALUE2);
+        config.transaction().remove("flag").commit();
+        Assert.assertEquals(VALUE2, config.get("query"));
+        Assert.assertFalse(config.has("flag"));
+        Map<String, String> expected = config.getAll();
+        config.close();
+        try {
+            config.put(KEY2, VALUE2);
+            Assert.fail("Expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+
+        MappedConfig reopened = MappedConfig.open(file);
+        Assert.assertEquals(3, reopened.size());
+        Assert.assertEquals(expected, reopened.getAll());
+        reopened.close();
+    }
+
+    @Test
+    public void segments() throws Exception {
+        // Small segments, so records span segments
+        File file = new File(folder.getRoot(), "segments");
+        MappedConfig config = new MappedConfig(file, null, 4096);
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            large.append('v');
+        }
+        Map<String, String> expected = new HashMap<>();
+        for (int i = 0; i < 5000; i++) {
+            String value = VALUE1 + i + (i % 7 == 0 ? "-a-much-longer-value-spanning-a-segment-boundary" : "");
+            config.put(KEY1 + i, value);
+            expected.put(KEY1 + i, value);
+        }
+        for (int i = 0; i < 5000; i += 2) {
+            config.put(KEY1 + i, VALUE2);
+            expected.put(KEY1 + i, VALUE2);
+        }
+        config.put(KEY2, large.toString());
+        expected.put(KEY2, large.toString());
+        Assert.assertEquals(5001, config.size());
+        Assert.assertEquals(large.toString(), config.get(KEY2));
+        Assert.assertEquals(VALUE2, config.get(KEY1 + 4998));
+        Assert.assertEquals(expected, config.getAll());
+        long before = file.length();
+        config.compact();
+        Assert.assertTrue(file.length() < before);
+        Assert.assertEquals(expected, config.getAll());
+        config.close();
+
+        config = new MappedConfig(file, null, 4096);
+        Assert.assertEquals(expected, config.getAll());
+        // Only the file remains, no temporary files
+        Assert.assertEquals(1, folder.getRoot().list().length);
+        config.close();
+    }
+
+    @Test
+    public void hierarchy() throws Exception {
+        Config root = new Config();
+        root.put(KEY1, VALUE1);
+        root.put("db.host", "localhost");
+        MappedConfig mapped = MappedConfig.open(new File(folder.getRoot(), "hierarchy"), root);
+        mapped.put("db.port", "5432");
+        mapped.put("dbx", VALUE2);
+        Config child = new Config(mapped);
+        child.put(KEY2, "?<db.host>:<db.port>");
+        Assert.assertEquals(VALUE1, child.get(KEY1));
+        Assert.assertEquals("localhost:5432", child.get(KEY2));
+        Map<String, String> expected = new HashMap<>();
+        expected.put("db.host", "localhost");
+        expected.put("db.port", "5432");
+        Assert.assertEquals(expected, child.getAll("db."));
+        mapped.put("db.port", "6543");
+        Assert.assertEquals("localhost:6543", child.get(KEY2));
+        mapped.close();
+    }
+
+    @Test
+    public void invalid() throws Exception {
+        File file = folder.newFile("invalid");
+        OutputStream out = new FileOutputStream(file);
+        out.write("key1=value1\n".getBytes());
+        out.close();
+        try {
+            MappedConfig.open(file);
+            Assert.fail("Expected IOException");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void corrupt() throws Exception {
+        File file = new File(folder.getRoot(), "corrupt");
+        MappedConfig config = MappedConfig.open(file);
+        config.put(KEY1, VALUE1);
+        // Point every slot past the end of the file, which the mapping shares
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(40);
+        for (int i = 0; i < 1024; i++) {
+            raf.writeLong(Long.MAX_VALUE / 2);
+        }
+        raf.close();
+
+        // Failures without a concurrent change are not mistaken for torn reads
+        try {
+            config.get(KEY1);
+            Assert.fail("Expected RuntimeException");
+        } catch (RuntimeException e) {
+            // Expected
+        }
+        try {
+            config.getAll();
+            Assert.fail("Expected RuntimeException");
+        } catch (RuntimeException e) {
+            // Expected
+        }
+        config.close();
+    }
+
+    @Test
+    public void streamTorn() throws Exception {
+        File file = new File(folder.getRoot(), "torn");
+        MappedConfig config = MappedConfig.open(file);
+        for (int i = 0; i < 100; i++) {
+            config.put(KEY1 + "." + i, VALUE1);
+        }
+        Set<String> seen = new HashSet<>();
+        Iterator<Entry<String, String>> i = config.stream().iterator();
+        seen.add(i.next().getKey());
+        // Moves every record past the end of the file as the iterator mapped it, so the rest of its scan is torn
+        char[] large = new char[4096];
+        Arrays.fill(large, 'x');
+        for (int j = 0; j < 100; j++) {
+            config.put(KEY1 + "." + j, new String(large));
+        }
+        while (i.hasNext()) {
+            seen.add(i.next().getKey());
+        }
+        for (int j = 0; j < 100; j++) {
+            Assert.assertTrue(seen.contains(KEY1 + "." + j));
+        }
+        config.close();
+    }
+}
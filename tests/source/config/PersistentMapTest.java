@@ -0,0 +1,94 @@
+/*
+ * Copyright 2018 Stuart Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package config;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PersistentMapTest {
+
+    @Test
+    public void inline() throws Exception {
+        PersistentMap<String> empty = PersistentMap.empty();
+        PersistentMap<String> map = empty.put("a", "1").put("b", "2").put("a", "3");
+        Assert.assertEquals(0, empty.size());
+        Assert.assertEquals(2, map.size());
+        Assert.assertEquals("3", map.get("a"));
+        Assert.assertEquals("2", map.get("b"));
+        Assert.assertNull(map.get("c"));
+        Assert.assertSame(map, map.remove("c"));
+        Assert.assertNull(map.remove("a").get("a"));
+        Assert.assertEquals("3", map.get("a"));
+    }
+
+    @Test
+    public void collisions() throws Exception {
+        // "Aa" and "BB" have the same hash
+        PersistentMap<String> map = PersistentMap.empty();
+        for (int i = 0; i < PersistentMap.INLINE; i++) {
+            map = map.put("key" + i, "value" + i);
+        }
+        map = map.put("Aa", "1").put("BB", "2").put("AaAa", "3").put("BBBB", "4").put("AaBB", "5");
+        Assert.assertEquals("1", map.get("Aa"));
+        Assert.assertEquals("2", map.get("BB"));
+        Assert.assertEquals("5", map.get("AaBB"));
+        Assert.assertNull(map.get("BBAa"));
+        map = map.remove("Aa");
+        Assert.assertNull(map.get("Aa"));
+        Assert.assertEquals("2", map.get("BB"));
+        Assert.assertEquals(PersistentMap.INLINE + 4, map.size());
+    }
+
+    @Test
+    public void random() throws Exception {
+        Random random = new Random(42);
+        Map<String, String> expected = new HashMap<>();
+        PersistentMap<String> map = PersistentMap.empty();
+        PersistentMap<String> previous = map;
+        Map<String, String> snapshot = new HashMap<>();
+        for (int i = 0; i < 20000; i++) {
+            String key = "key" + random.nextInt(3000);
+            if (random.nextInt(4) == 0) {
+                expected.remove(key);
+                map = map.remove(key);
+            } else {
+                expected.put(key, "value" + i);
+                map = map.put(key, "value" + i);
+            }
+            if (i == 10000) {
+                previous = map;
+                snapshot.putAll(expected);
+            }
+        }
+        Assert.assertEquals(expected.size(), map.size());
+        Map<String, String> actual = new HashMap<>();
+        for (Entry<String, String> e : map) {
+            Assert.assertNull(actual.put(e.getKey(), e.getValue()));
+        }
+        Assert.assertEquals(expected, actual);
+        // Earlier maps are unchanged
+        for (Entry<String, String> e : snapshot.entrySet()) {
+            Assert.assertEquals(e.getValue(), previous.get(e.getKey()));
+        }
+        Assert.assertEquals(snapshot.size(), previous.size());
+    }
+}
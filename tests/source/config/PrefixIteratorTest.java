@@ -0,0 +1,93 @@
+/*
+ * Copyright 2018 Stuart Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package config;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PrefixIteratorTest {
+
+    @Test
+    public void filter() throws Exception {
+        Map<String, String> entries = new LinkedHashMap<>();
+        entries.put("db.host", "a");
+        entries.put("other", "b");
+        entries.put("db.port", "c");
+        entries.put("dbx", "d");
+        Assert.assertEquals(list("db.host", "db.port"), keys(PrefixIterator.filter(entries.entrySet().iterator(), "db.", false)));
+        Assert.assertEquals(list(), keys(PrefixIterator.filter(entries.entrySet().iterator(), "missing", false)));
+        Iterator<Entry<String, String>> i = entries.entrySet().iterator();
+        Assert.assertSame(i, PrefixIterator.filter(i, "", false));
+    }
+
+    @Test
+    public void sorted() throws Exception {
+        TreeMap<String, String> entries = new TreeMap<>();
+        entries.put("a", "1");
+        entries.put("db.host", "2");
+        entries.put("db.port", "3");
+        entries.put("e", "4");
+        entries.put("f", "5");
+        // Ends at the first key without the prefix, rather than reading the rest of the map
+        Iterator<Entry<String, String>> tail = entries.tailMap("db.").entrySet().iterator();
+        Assert.assertEquals(list("db.host", "db.port"), keys(PrefixIterator.filter(tail, "db.", true)));
+        Assert.assertTrue(tail.hasNext());
+        Assert.assertEquals("f", tail.next().getKey());
+    }
+
+    @Test
+    public void next() throws Exception {
+        Map<String, String> entries = new TreeMap<>();
+        entries.put("key", "value");
+        Iterator<Entry<String, String>> i = PrefixIterator.filter(entries.entrySet().iterator(), "k", true);
+        // Repeated calls to hasNext do not skip entries
+        Assert.assertTrue(i.hasNext());
+        Assert.assertTrue(i.hasNext());
+        Assert.assertEquals("key", i.next().getKey());
+        Assert.assertFalse(i.hasNext());
+        try {
+            i.next();
+            Assert.fail("Expected NoSuchElementException");
+        } catch (NoSuchElementException e) {
+            // Expected
+        }
+    }
+
+    private static List<String> keys(Iterator<Entry<String, String>> i) {
+        List<String> keys = new ArrayList<>();
+        while (i.hasNext()) {
+            keys.add(i.next().getKey());
+        }
+        return keys;
+    }
+
+    private static List<String> list(String... keys) {
+        List<String> list = new ArrayList<>();
+        for (String key : keys) {
+            list.add(key);
+        }
+        return list;
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright 2018 Stuart Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package config;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SourceConfigTest {
+
+    public static final String KEY1 = "key1";
+    public static final String KEY2 = "key2";
+    public static final String VALUE1 = "value1";
+    public static final String VALUE2 = "value2";
+
+    /**
+     * A source backed by a map, whose fetches can be held back.
+     */
+    static class MapSource implements ConfigSource {
+
+        final Map<String, String> entries = new ConcurrentHashMap<>();
+        final AtomicInteger fetches = new AtomicInteger();
+        volatile CountDownLatch latch = new CountDownLatch(0);
+        volatile boolean failing;
+
+        @Override
+        public Map<String, String> fetch() throws IOException {
+            fetches.incrementAndGet();
+            try {
+                latch.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            if (failing) {
+                throw new IOException("Unavailable");
+            }
+            return entries;
+        }
+    }
+
+    @Test
+    public void properties() throws Exception {
+        System.setProperty("config.source.test", VALUE1);
+        try (SourceConfig config = new SourceConfig(null, ConfigSource.properties(), 1, TimeUnit.HOURS)) {
+            config.refresh().get(10, TimeUnit.SECONDS);
+            Assert.assertEquals(VALUE1, config.get("config.source.test"));
+        }
+    }
+
+    @Test
+    public void environment() throws Exception {
+        try (SourceConfig config = new SourceConfig(null, ConfigSource.environment(), 1, TimeUnit.HOURS)) {
+            config.refresh().get(10, TimeUnit.SECONDS);
+            for (Map.Entry<String, String> e : System.getenv().entrySet()) {
+                Assert.assertTrue(config.has(e.getKey()));
+            }
+        }
+    }
+
+    @Test
+    public void refresh() throws Exception {
+        MapSource source = new MapSource();
+        source.entries.put(KEY1, VALUE1);
+        SourceConfig config = new SourceConfig(null, source, 1, TimeUnit.HOURS);
+        config.refresh().get(10, TimeUnit.SECONDS);
+        int fetches = source.fetches.get();
+        Config child = new Config(config).put(KEY2, "?<" + KEY1 + ">");
+        LinkedBlockingQueue<Map<String, String>> changes = new LinkedBlockingQueue<>();
+        child.subscribe("", (c, changed) -> changes.add(changed), Runnable::run);
+        Assert.assertEquals(VALUE1, child.get(KEY2));
+
+        source.latch = new CountDownLatch(1);
+        source.entries.put(KEY1, VALUE2);
+        CompletableFuture<Void> future = config.refresh();
+        Assert.assertSame(future, config.refresh());
+        Assert.assertEquals(VALUE1, child.get(KEY2));
+        source.latch.countDown();
+        future.get(10, TimeUnit.SECONDS);
+        Assert.assertEquals(fetches + 1, source.fetches.get());
+        Assert.assertEquals(VALUE2, child.get(KEY2));
+        Map<String, String> changed = changes.poll(10, TimeUnit.SECONDS);
+        Assert.assertEquals(VALUE2, changed.get(KEY1));
+
+        source.entries.remove(KEY1);
+        config.refresh().get(10, TimeUnit.SECONDS);
+        Assert.assertFalse(config.has(KEY1));
+        config.close();
+    }
+
+    @Test
+    public void failure() throws Exception {
+        MapSource source = new MapSource();
+        source.entries.put(KEY1, VALUE1);
+        SourceConfig config = new SourceConfig(null, source, 1, TimeUnit.HOURS);
+        config.refresh().get(10, TimeUnit.SECONDS);
+        source.failing = true;
+        source.entries.put(KEY1, VALUE2);
+        try {
+            config.refresh().get(10, TimeUnit.SECONDS);
+            Assert.fail();
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof IOException);
+        }
+        Assert.assertEquals(VALUE1, config.get(KEY1));
+        source.failing = false;
+        config.refresh().get(10, TimeUnit.SECONDS);
+        Assert.assertEquals(VALUE2, config.get(KEY1));
+        config.close();
+    }
+
+    @Test
+    public void remote() throws Exception {
+        AtomicReference<String> body = new AtomicReference<>(KEY1 + "=" + VALUE1 + "\n" + KEY2 + "\n");
+        AtomicInteger status = new AtomicInteger(200);
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/config", exchange -> {
+            byte[] bytes = body.get().getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(status.get(), bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        });
+        server.start();
+        try {
+            URL url = new URL("http", server.getAddress().getHostString(), server.getAddress().getPort(), "/config");
+            SourceConfig config = new SourceConfig(null, ConfigSource.remote(url), 1, TimeUnit.HOURS);
+            config.refresh().get(10, TimeUnit.SECONDS);
+            Assert.assertEquals(VALUE1, config.get(KEY1));
+            Assert.assertTrue(config.getBoolean(KEY2));
+
+            body.set(KEY1 + "=" + VALUE2 + "\n");
+            config.refresh().get(10, TimeUnit.SECONDS);
+            Assert.assertEquals(VALUE2, config.get(KEY1));
+            Assert.assertFalse(config.has(KEY2));
+
+            status.set(503);
+            body.set("");
+            try {
+                config.refresh().get(10, TimeUnit.SECONDS);
+                Assert.fail();
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof IOException);
+            }
+            Assert.assertEquals(VALUE2, config.get(KEY1));
+            config.close();
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void background() throws Exception {
+        MapSource source = new MapSource();
+        source.entries.put(KEY1, VALUE1);
+        source.latch = new CountDownLatch(1);
+        // Creating the config does not wait for the source
+        SourceConfig config = new SourceConfig(null, source, 1, TimeUnit.HOURS);
+        Assert.assertTrue(config.isStale());
+        Assert.assertFalse(config.has(KEY1));
+        CompletableFuture<Void> first = config.refresh();
+        source.latch.countDown();
+        first.get(10, TimeUnit.SECONDS);
+        Assert.assertFalse(config.isStale());
+        Assert.assertEquals(VALUE1, config.get(KEY1));
+        Assert.assertEquals(1, source.fetches.get());
+        config.close();
+    }
+
+    @Test
+    public void expiry() throws Exception {
+        MapSource source = new MapSource();
+        source.entries.put(KEY1, VALUE1);
+        // Refreshed every 20ms, and kept for 200ms while the source is failing
+        SourceConfig config = new SourceConfig(null, source, 20, 200, TimeUnit.MILLISECONDS, ForkJoinPool.commonPool());
+        config.refresh().get(10, TimeUnit.SECONDS);
+        Assert.assertEquals(VALUE1, config.get(KEY1));
+        source.failing = true;
+        long failed = System.nanoTime();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!config.isStale() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        Assert.assertTrue(config.isStale());
+        if (System.nanoTime() - failed < TimeUnit.MILLISECONDS.toNanos(150)) {
+            Assert.assertEquals(VALUE1, config.get(KEY1));
+        }
+        while (config.has(KEY1) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        Assert.assertFalse(config.has(KEY1));
+        Assert.assertTrue(System.nanoTime() - failed >= TimeUnit.MILLISECONDS.toNanos(150));
+
+        // The source is retried until it is back
+        source.failing = false;
+        while (!config.has(KEY1) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        Assert.assertEquals(VALUE1, config.get(KEY1));
+        Assert.assertFalse(config.isStale());
+        config.close();
+    }
+
+    @Test
+    public void scheduled() throws Exception {
+        MapSource source = new MapSource();
+        SourceConfig config = new SourceConfig(null, source, 10, TimeUnit.MILLISECONDS);
+        source.entries.put(KEY1, VALUE1);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!config.has(KEY1) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(VALUE1, config.get(KEY1));
+        config.close();
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void readOnly() throws Exception {
+        try (SourceConfig config = new SourceConfig(null, new MapSource(), 1, TimeUnit.HOURS)) {
+            config.put(KEY1, VALUE1);
+        }
+    }
+}